@@ -15,13 +15,22 @@ import javax.sql.rowset.serial.SerialClob;
 import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Clob;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
-public class BerkleyBackedCache implements DIHCache {
+public class BerkleyBackedCache implements DIHCache, BerkleyLazyRowMap.ColumnDecoder {
 
 	/**
 	 * +   * <p>
@@ -58,9 +67,247 @@ public class BerkleyBackedCache implements DIHCache {
 	 * </ul>
 	 */
 	public static final String BERKLEY_TRANSACTIONAL = "berkleyTransactional";
+	/**
+	 * <p>
+	 * Specify "true" to store every added row as its own record, keyed by the
+	 * primary key followed by an insertion sequence number. Each "add(rec)" is
+	 * then a single append that never reads back the rows already stored for the
+	 * key. Lookups and full scans return the rows in insertion order.
+	 * <p>
+	 * Only applies to newly created caches; an existing cache keeps the storage
+	 * mode it was created with.
+	 */
+	public static final String BERKLEY_APPEND_DUPLICATES = "berkleyAppendDuplicates";
+	/**
+	 * <p>
+	 * Specify "true" to bulk-load the cache. Added rows are buffered and spilled
+	 * to sorted run files in the cache directory. On "flush()" and "close()" the
+	 * runs are merged by encoded primary key and written to the database in key
+	 * order, with all rows of a key grouped together. This is intended for full
+	 * imports, where rows arrive in no particular key order.
+	 */
+	public static final String BERKLEY_BULK_LOAD = "berkleyBulkLoad";
+	/**
+	 * <p>
+	 * The # of bytes of rows to buffer in memory before a sorted run is spilled
+	 * to disk when using {@link #BERKLEY_BULK_LOAD}. Default is 64MB.
+	 */
+	public static final String BERKLEY_BULK_LOAD_BUFFER_SIZE = "berkleyBulkLoadBufferSize";
+	/**
+	 * <p>
+	 * Specify "true" when the cache is built from scratch and thrown away if
+	 * the import fails. JE's cleaner and checkpointer don't run while the cache
+	 * is open, and "flush()" doesn't sync the log. At "close()" the log is
+	 * synced and cleaned until no more files can be reclaimed, and a forced
+	 * checkpoint deletes the cleaned files, so the finished cache is compact
+	 * and opens without a long recovery. Ignored for read-only caches and with
+	 * {@link #BERKLEY_SHARED_ENVIRONMENT}.
+	 */
+	public static final String BERKLEY_BULK_IMPORT = "berkleyBulkImport";
+	/**
+	 * <p>
+	 * The record format version for newly created caches. Version 2 (the
+	 * default) writes a column state bitmap per row and variable-length numbers
+	 * and strings; version 1 is the format of earlier releases, with a count and
+	 * a null flag for every value. An existing cache keeps the format it was
+	 * created with.
+	 */
+	public static final String BERKLEY_RECORD_FORMAT = "berkleyRecordFormat";
+	/**
+	 * <p>
+	 * The primary key format version for newly created caches. Version 2 writes
+	 * FLOAT, DOUBLE and BIGDECIMAL keys in JE's sorted binary formats, so the
+	 * keys of every type sort in the natural order of their values: cursor
+	 * scans, {@link #rangeIterator(Object, Object)} and key-ordered lookups
+	 * follow that order. Version 1 is the format of earlier releases, with BIGDECIMAL
+	 * keys as decimal strings and FLOAT and DOUBLE keys as raw bits. All other
+	 * key types are written the same way in both.
+	 * <p>
+	 * Version 2 stores a BIGDECIMAL key without trailing zeros, so "1.0" and
+	 * "1.00" are the same key, and the rows return it so: 1.00 as 1, 100 as 100.
+	 * Caches with a BIGDECIMAL primary key therefore get version 2 only if it's
+	 * specified; all others get it by default. The version is fixed when the
+	 * cache's columns are known, and an existing cache keeps it.
+	 */
+	public static final String BERKLEY_KEY_FORMAT = "berkleyKeyFormat";
+	/**
+	 * <p>
+	 * The maximum # of distinct values per STRING column to store as dictionary
+	 * codes. Every STRING column starts with a dictionary, filled with the first
+	 * distinct values seen; values beyond the limit are stored as-is, so
+	 * low-cardinality columns (locales, kinds, status codes) are coded entirely.
+	 * A column whose first {@link BerkleyStringDictionary#SAMPLE_SIZE} values are
+	 * mostly distinct loses its dictionary, and its later values are stored
+	 * as-is. Lookups return one shared String instance per coded value. Specify
+	 * "0" to create a cache without dictionaries. Default is 256.
+	 * <p>
+	 * Dictionaries are only used by caches created with record format 2 (see
+	 * {@link #BERKLEY_RECORD_FORMAT}); whether a cache uses them is decided when
+	 * it is created.
+	 */
+	public static final String BERKLEY_STRING_DICTIONARY_SIZE = "berkleyStringDictionarySize";
+	/**
+	 * <p>
+	 * Records larger than this # of bytes are compressed with
+	 * {@link java.util.zip.Deflater} before they are stored, and decompressed
+	 * transparently when read. Intended for caches of long texts (descriptions,
+	 * CLOBs). Only applies to caches with record format 2 (see
+	 * {@link #BERKLEY_RECORD_FORMAT}). Default is no compression.
+	 */
+	public static final String BERKLEY_COMPRESSION_THRESHOLD = "berkleyCompressionThreshold";
+	/**
+	 * <p>
+	 * Specify "true" to build a Bloom filter over all primary keys when the
+	 * cache is closed after writing. It is stored in the cache directory and
+	 * loaded whenever the cache is opened read-only; lookups of keys the filter
+	 * rules out return without searching the database. Opening the cache for
+	 * writing discards the filter.
+	 */
+	public static final String BERKLEY_BLOOM_FILTER = "berkleyBloomFilter";
+	/**
+	 * <p>
+	 * The false positive rate the Bloom filter is sized for when using
+	 * {@link #BERKLEY_BLOOM_FILTER}. Default is 0.01.
+	 */
+	public static final String BERKLEY_BLOOM_FILTER_FALSE_POSITIVE_RATE = "berkleyBloomFilterFalsePositiveRate";
+	/**
+	 * <p>
+	 * The maximum # of bytes of the Bloom filter when using
+	 * {@link #BERKLEY_BLOOM_FILTER}. If the requested false positive rate would
+	 * need more, the filter is capped and its rate is higher. Default is 64MB.
+	 */
+	public static final String BERKLEY_BLOOM_FILTER_MAX_BYTES = "berkleyBloomFilterMaxBytes";
+	/**
+	 * <p>
+	 * The # of heap bytes to use for keeping the results of recent lookups, so
+	 * keys that are looked up again and again (codes, classifications) are
+	 * served without searching the database. Every lookup returns new row
+	 * objects, so transformers may modify them. Hit/miss statistics are logged
+	 * when the cache is closed. Default is 0 (no result cache).
+	 */
+	public static final String BERKLEY_ROW_CACHE_SIZE = "berkleyRowCacheSize";
+	/**
+	 * <p>
+	 * Specify "true" to keep this cache as a database in one JE environment
+	 * shared by all caches of the same base directory that specify it, instead
+	 * of an environment of its own. The caches then share one internal cache,
+	 * one set of JE daemon threads (cleaner, checkpointer, evictor) and one set
+	 * of log files, in the directory "shared-environment". The environment is
+	 * opened with the settings of the first cache that opens it, and closed
+	 * when the last one is closed; if that's a read-only cache, no cache can
+	 * write in it until then. Other files of the cache (properties,
+	 * dictionaries, Bloom filter) stay where they are.
+	 * <p>
+	 * A cache is either always or never opened with this setting: switching
+	 * starts from an empty cache, and a cache of the other kind is left on
+	 * disk.
+	 */
+	public static final String BERKLEY_SHARED_ENVIRONMENT = "berkleySharedEnvironment";
+	/**
+	 * <p>
+	 * Set the total # of bytes for the internal caches of all open
+	 * BerkleyBackedCaches that specify it. The budget is divided between their
+	 * environments and rebalanced periodically: caches busy with keyed lookups
+	 * get more memory, idle caches and caches read by sequential scans get
+	 * less. {@link #BERKLEY_INTERNAL_CACHE_SIZE} is ignored for these caches,
+	 * and caches that use {@link #BERKLEY_SHARED} can't take part. The budget
+	 * is process-wide: the cache opened last sets it for all.
+	 */
+	public static final String BERKLEY_MEMORY_BUDGET = "berkleyMemoryBudget";
+	/**
+	 * <p>
+	 * The # of milliseconds between rebalancings of the
+	 * {@link #BERKLEY_MEMORY_BUDGET} (default 10000).
+	 */
+	public static final String BERKLEY_MEMORY_BUDGET_INTERVAL = "berkleyMemoryBudgetInterval";
+	/**
+	 * <p>
+	 * Specify "INTERNAL" to warm up the internal cache with the B-tree's
+	 * internal nodes when the cache is opened, so early lookups don't fault
+	 * them in from disk one at a time. Specify "ALL" to load the records
+	 * after them, as far as the internal cache (or
+	 * {@link #BERKLEY_PRELOAD_MAX_BYTES}) allows. How many bytes were loaded in
+	 * how much time is logged.
+	 */
+	public static final String BERKLEY_PRELOAD = "berkleyPreload";
+	/**
+	 * <p>
+	 * Stop the {@link #BERKLEY_PRELOAD} after this # of milliseconds.
+	 */
+	public static final String BERKLEY_PRELOAD_MAX_MILLIS = "berkleyPreloadMaxMillis";
+	/**
+	 * <p>
+	 * Stop the {@link #BERKLEY_PRELOAD} once this # of bytes is in the internal
+	 * cache (default: its size).
+	 */
+	public static final String BERKLEY_PRELOAD_MAX_BYTES = "berkleyPreloadMaxBytes";
+	/**
+	 * <p>
+	 * Specify "true" to run the {@link #BERKLEY_PRELOAD} on a thread of its own,
+	 * so the cache can be used at once. Lookups are served while it runs, and
+	 * closing the cache stops it.
+	 */
+	public static final String BERKLEY_PRELOAD_IN_BACKGROUND = "berkleyPreloadInBackground";
+	/**
+	 * <p>
+	 * Set the # of most frequently looked-up keys to remember. A read-only
+	 * cache samples its lookups and saves the hottest keys next to the cache
+	 * ("&lt;name&gt;_cache.hotkeys") when it is closed. When it is opened
+	 * again, a background thread reads their records into the internal cache,
+	 * a cheaper warm-up than {@link #BERKLEY_PRELOAD} for caches much larger
+	 * than memory. The profile survives rebuilding the cache.
+	 */
+	public static final String BERKLEY_HOT_KEYS = "berkleyHotKeys";
+	/**
+	 * <p>
+	 * Specify "true" to rebuild the cache in a new generation instead of in
+	 * place. Deleting the prior data (or "deleteAll()") then starts an empty
+	 * generation next to the current one, and "close()" makes it current by
+	 * atomically replacing the pointer file "&lt;name&gt;_cache.current". Until
+	 * then, readers keep opening the previous generation. Generations that are
+	 * no longer current are deleted in the background once no process has them
+	 * open. Once a cache has generations, every BerkleyBackedCache opening it
+	 * uses the current one, whether it specifies this or not.
+	 */
+	public static final String BERKLEY_GENERATIONS = "berkleyGenerations";
+	/**
+	 * <p>
+	 * The # of bytes of heap for the keys remembered with
+	 * {@link DIHCachePersistProperties#CACHE_DELTA_WITH_FULL_UPDATE_NO_CLEAN}
+	 * (default 64MB). Beyond that, they are moved to a temporary database in
+	 * the cache's environment, which is removed when the cache is closed.
+	 */
+	public static final String BERKLEY_CHANGED_KEYS_MEMORY = "berkleyChangedKeysMemory";
 	private static final Logger LOG = LoggerFactory.getLogger(BerkleyBackedCache.class);
 	private static final String CACHE_PROP_FOR_NAMES = "CACHE_NAMES";
 	private static final String CACHE_PROP_FOR_TYPES = "CACHE_TYPES";
+	private static final String CACHE_PROP_FOR_STORAGE = "CACHE_STORAGE";
+	private static final String CACHE_PROP_FOR_NEXT_SEQUENCE = "CACHE_NEXT_SEQUENCE";
+	private static final String CACHE_PROP_FOR_FORMAT_VERSION = "CACHE_FORMAT_VERSION";
+	private static final String CACHE_PROP_FOR_STRING_DICTIONARIES = "CACHE_STRING_DICTIONARIES";
+	private static final String CACHE_PROP_FOR_COMPRESSION = "CACHE_COMPRESSION";
+	private static final String CACHE_PROP_FOR_KEY_FORMAT = "CACHE_KEY_FORMAT";
+	private static final String COMPRESSION_DEFLATE = "DEFLATE";
+	private static final String BLOOM_FILTER_FILE = "primary-keys.bloom";
+	private static final String SHARED_ENVIRONMENT_DIRECTORY = "shared-environment";
+	private static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static final long DEFAULT_BLOOM_FILTER_MAX_BYTES = 64L * 1024 * 1024;
+	private static final String STRING_DICTIONARY_FILE = "string-dictionaries.dat";
+	private static final int DEFAULT_STRING_DICTIONARY_SIZE = 256;
+	private static final int FORMAT_LEGACY = 1;
+	private static final int FORMAT_COMPACT = 2;
+	private static final int KEY_FORMAT_TUPLE = 1;
+	private static final int KEY_FORMAT_ORDERED = 2;
+	private static final String STORAGE_LIST = "LIST";
+	private static final String STORAGE_APPEND = "APPEND";
+	private static final int SEQUENCE_LENGTH = 8;
+	private static final long DEFAULT_BULK_LOAD_BUFFER_SIZE = 64L * 1024 * 1024;
+	private static final int KEY_LOCK_STRIPES = 64;
+	private static final long BULK_IMPORT_LOG_FILE_MAX = 128L * 1024 * 1024;
+	private static final long DEFAULT_CHANGED_KEYS_MEMORY = 64L * 1024 * 1024;
+	private static final String CHANGED_KEYS_DATABASE_SUFFIX = "-changed-keys";
+	private static final String PRELOAD_INTERNAL = "INTERNAL";
+	private static final String PRELOAD_ALL = "ALL";
 
 	private static final Pattern splitMetadataPattern = Pattern.compile("\\s*,\\s*");
 	private BerkleyEnvironment env = null;
@@ -70,23 +317,113 @@ public class BerkleyBackedCache implements DIHCache {
 	private boolean rememberChangedKeys = false;
 	private boolean changedKeysArriveInOrder = false;
 	private boolean disableDuplicateAdds = false;
-	private Set<Object> changedKeys = null;
+	private boolean appendDuplicates = false;
+	private boolean appendDuplicatesRequested = false;
+	private int recordFormatRequested = FORMAT_COMPACT;
+	// 0 if not specified
+	private int keyFormatRequested = 0;
+	private boolean orderedKeys = false;
+	private int stringDictionarySize = DEFAULT_STRING_DICTIONARY_SIZE;
+	private boolean useStringDictionaries = false;
+	private Map<String, BerkleyStringDictionary> stringDictionaries = null;
+	private BerkleyStringDictionary[] dictionaries = null;
+	private int compressionThresholdRequested = -1;
+	private int compressionThreshold = -1;
+	private final LongAdder compressedRecords = new LongAdder();
+	private final LongAdder compressedBytesIn = new LongAdder();
+	private final LongAdder compressedBytesOut = new LongAdder();
+	private boolean buildBloomFilter = false;
+	private double bloomFilterFalsePositiveRate = DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE;
+	private long bloomFilterMaxBytes = DEFAULT_BLOOM_FILTER_MAX_BYTES;
+	private BerkleyBloomFilter bloomFilter = null;
+	private final LongAdder bloomFilterMisses = new LongAdder();
+	private long rowCacheSize = 0;
+	private BerkleyRowCache rowCache = null;
+	private long nextSequence = 0;
+	private boolean sequenceChanged = false;
+	private boolean bulkLoad = false;
+	private boolean bulkImport = false;
+	private long bulkLoadBufferSize = DEFAULT_BULK_LOAD_BUFFER_SIZE;
+	private BerkleyRunFileSorter bulkLoadSorter = null;
+	private BerkleyChangedKeys changedKeys = null;
+	private long changedKeysMemory = DEFAULT_CHANGED_KEYS_MEMORY;
 	private Long internalCacheSize = null;
+	private Long memoryBudget = null;
+	private long memoryBudgetInterval = BerkleyMemoryBudget.DEFAULT_INTERVAL;
+	private boolean budgeted = false;
+	private String preload = null;
+	private long preloadMaxMillis = 0;
+	private long preloadMaxBytes = 0;
+	private boolean preloadInBackground = false;
+	private BerkleyPreloader preloader = null;
+	private int hotKeysSize = 0;
+	private BerkleyHotKeys hotKeys = null;
 	private String[] columns;
 	private String pkColumn;
 	private int pkColumnIndex;
 	private DIHCacheTypes[] types;
+	/**
+	 * The type of the primary key if it's a whole number that
+	 * {@link #iterator(long)} encodes without boxing, else null.
+	 */
+	private DIHCacheTypes longKeyType = null;
 	private String[] passedInColumns;
 	private DIHCacheTypes[] passedInTypes;
 	private String baseLoc;
 	private String cacheName;
+	// the name of the cache's directory and properties: the cache's name or its generation
+	private String storeName;
+	private boolean generations = false;
+	private boolean newGeneration = false;
 	private CacheMode cacheMode = CacheMode.DEFAULT;
 	private boolean sharedCache = false;
-	private long totalTimeNano = 0;
+	private boolean sharedEnvironment = false;
+	private final LongAdder totalTimeNano = new LongAdder();
 	private Properties cacheProperties = null;
-	private List<BerkleyBackedCacheIterator> iterators = new ArrayList<BerkleyBackedCacheIterator>();
+	private List<BerkleyBackedCacheIterator> iterators = new CopyOnWriteArrayList<BerkleyBackedCacheIterator>();
+	private List<KeyOrderedLookup> keyOrderedLookups = new CopyOnWriteArrayList<KeyOrderedLookup>();
+	/*
+	 * add(rec) and delete(key) may be called by several threads at once. The
+	 * read-modify-write of a key's record runs under the lock of the key's
+	 * stripe, so rows of the same key are stored in the order their add(rec)
+	 * calls acquire it, while other keys proceed in parallel. Column discovery,
+	 * the insertion sequence and the bulk-load buffer are guarded by "this".
+	 * flush(), close() and deleteAll() must not overlap with other calls.
+	 */
+	private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+	private volatile boolean columnsReady = false;
+	private int[] dataSlots;
+	private String[] dataColumns;
+	private DIHCacheTypes[] dataTypes;
+	private Map<String, Integer> columnIndexes;
+	private Map<String, Integer> columnIndexesIgnoreCase;
+	private Map<String, Integer> dataSlotsByName;
+	private final PrimaryKeyTupleBinding keyBinding = new PrimaryKeyTupleBinding();
+	private RecordFormat recordFormat;
+	private final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+		@Override
+		protected Codec initialValue() {
+			return new Codec();
+		}
+	};
 
 	public BerkleyBackedCache() {
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Returns the lock of the stripe the encoded key "theKey" belongs to.
+	 */
+	private Object keyLock(DatabaseEntry theKey) {
+		byte[] data = theKey.getData();
+		int h = 1;
+		for (int i = theKey.getOffset(); i < theKey.getOffset() + theKey.getSize(); i++) {
+			h = 31 * h + data[i];
+		}
+		h ^= h >>> 16;
+		return keyLocks[h & (keyLocks.length - 1)];
 	}
 
 	private void checkOpen(boolean shouldItBe) {
@@ -111,14 +448,36 @@ public class BerkleyBackedCache implements DIHCache {
 		if (cacheName == null) {
 			cacheName = "BerkleyBackedCache-" + System.currentTimeMillis();
 		}
+		sharedEnvironment = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_SHARED_ENVIRONMENT));
+		generations = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_GENERATIONS));
+		if (generations && sharedEnvironment) {
+			LOG.warn("Ignoring " + BERKLEY_GENERATIONS + " for cache: " + cacheName + ", it uses "
+					+ BERKLEY_SHARED_ENVIRONMENT);
+			generations = false;
+		}
+		String currentGeneration = sharedEnvironment ? null : currentGeneration();
+		generations |= currentGeneration != null;
+		storeName = currentGeneration != null ? currentGeneration : cacheName;
+		newGeneration = false;
 		String cacheDeletePriorData = CachePropertyUtil.getAttributeValueAsString(context,
 				DIHCacheSupport.CACHE_DELETE_PRIOR_DATA);
 		if ("true".equalsIgnoreCase(cacheDeletePriorData)) {
-			destroy();
+			if (generations) {
+				// the current generation stays readable until this one replaces it
+				storeName = BerkleyGenerations.next(new File(baseLoc), cacheName);
+				newGeneration = true;
+			} else {
+				destroy();
+			}
 		}
 		readOnly = false;
 		String cacheReadOnly = CachePropertyUtil.getAttributeValueAsString(context, DIHCacheSupport.CACHE_READ_ONLY);
-		if ("true".equalsIgnoreCase(cacheReadOnly)) {
+		// DIHCacheProcessor asks for read-only access with the persistCache* name
+		String persistCacheReadOnly = CachePropertyUtil.getAttributeValueAsString(context,
+				DIHCachePersistProperties.CACHE_READ_ONLY);
+		if ("true".equalsIgnoreCase(cacheReadOnly) || "true".equalsIgnoreCase(persistCacheReadOnly)) {
 			readOnly = true;
 		}
 		transactional = false;
@@ -131,7 +490,16 @@ public class BerkleyBackedCache implements DIHCache {
 		if ("true".equalsIgnoreCase(
 				CachePropertyUtil.getAttributeValueAsString(context, DIHCachePersistProperties.CACHE_DELTA_WITH_FULL_UPDATE_NO_CLEAN))) {
 			rememberChangedKeys = true;
-			changedKeys = new HashSet<Object>();
+		}
+		String ckm = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_CHANGED_KEYS_MEMORY);
+		if (ckm != null) {
+			try {
+				changedKeysMemory = Long.parseLong(ckm);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Value of " + BERKLEY_CHANGED_KEYS_MEMORY + " must be a number");
+			}
+		} else {
+			changedKeysMemory = DEFAULT_CHANGED_KEYS_MEMORY;
 		}
 
 		changedKeysArriveInOrder = false;
@@ -146,7 +514,69 @@ public class BerkleyBackedCache implements DIHCache {
 						DIHCachePersistProperties.CACHE_NO_DUPLICATE_KEYS))) {
 			disableDuplicateAdds = true;
 			rememberChangedKeys = false;
-			changedKeys = null;
+		}
+		appendDuplicatesRequested = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_APPEND_DUPLICATES));
+		String recordFormatStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_RECORD_FORMAT);
+		if (recordFormatStr != null) {
+			recordFormatRequested = Integer.parseInt(recordFormatStr);
+			if (recordFormatRequested != FORMAT_LEGACY && recordFormatRequested != FORMAT_COMPACT) {
+				throw new IllegalArgumentException(BERKLEY_RECORD_FORMAT + " must be "
+						+ FORMAT_LEGACY + " or " + FORMAT_COMPACT + ", was: " + recordFormatStr);
+			}
+		}
+		String keyFormatStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_KEY_FORMAT);
+		keyFormatRequested = 0;
+		if (keyFormatStr != null) {
+			keyFormatRequested = Integer.parseInt(keyFormatStr);
+			if (keyFormatRequested != KEY_FORMAT_TUPLE && keyFormatRequested != KEY_FORMAT_ORDERED) {
+				throw new IllegalArgumentException(BERKLEY_KEY_FORMAT + " must be "
+						+ KEY_FORMAT_TUPLE + " or " + KEY_FORMAT_ORDERED + ", was: " + keyFormatStr);
+			}
+		}
+		String dictionarySizeStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_STRING_DICTIONARY_SIZE);
+		if (dictionarySizeStr != null) {
+			stringDictionarySize = Integer.parseInt(dictionarySizeStr);
+		}
+		buildBloomFilter = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_BLOOM_FILTER));
+		String bloomRateStr = CachePropertyUtil.getAttributeValueAsString(context,
+				BERKLEY_BLOOM_FILTER_FALSE_POSITIVE_RATE);
+		bloomFilterFalsePositiveRate = bloomRateStr == null ? DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE
+				: Double.parseDouble(bloomRateStr);
+		if (!(bloomFilterFalsePositiveRate > 0 && bloomFilterFalsePositiveRate < 1)) {
+			throw new IllegalArgumentException(BERKLEY_BLOOM_FILTER_FALSE_POSITIVE_RATE
+					+ " must be between 0 and 1, was: " + bloomRateStr);
+		}
+		String bloomMaxBytesStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_BLOOM_FILTER_MAX_BYTES);
+		bloomFilterMaxBytes = bloomMaxBytesStr == null ? DEFAULT_BLOOM_FILTER_MAX_BYTES
+				: Long.parseLong(bloomMaxBytesStr);
+		String rowCacheSizeStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_ROW_CACHE_SIZE);
+		rowCacheSize = rowCacheSizeStr == null ? 0 : Long.parseLong(rowCacheSizeStr);
+		compressionThresholdRequested = -1;
+		String compressionThresholdStr = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_COMPRESSION_THRESHOLD);
+		if (compressionThresholdStr != null) {
+			compressionThresholdRequested = Integer.parseInt(compressionThresholdStr);
+		}
+		bulkLoad = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_BULK_LOAD));
+		bulkImport = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_BULK_IMPORT));
+		if (bulkImport && (readOnly || sharedEnvironment)) {
+			if (sharedEnvironment) {
+				LOG.warn("Ignoring " + BERKLEY_BULK_IMPORT + " for cache: " + cacheName
+						+ ", its environment is shared with other caches");
+			}
+			bulkImport = false;
+		}
+		String blbs = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_BULK_LOAD_BUFFER_SIZE);
+		if (blbs != null) {
+			try {
+				bulkLoadBufferSize = Long.parseLong(blbs);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Value of "
+						+ BERKLEY_BULK_LOAD_BUFFER_SIZE + " must be a number");
+			}
 		}
 		String bep = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_EVICT_POLICY);
 		if ("EVICT_LN".equals(bep)) {
@@ -174,6 +604,49 @@ public class BerkleyBackedCache implements DIHCache {
 						+ BERKLEY_INTERNAL_CACHE_SIZE + " must be a number");
 			}
 		}
+		String mb = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_MEMORY_BUDGET);
+		String mbi = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_MEMORY_BUDGET_INTERVAL);
+		try {
+			memoryBudget = mb == null ? null : Long.parseLong(mb);
+			memoryBudgetInterval = mbi == null ? BerkleyMemoryBudget.DEFAULT_INTERVAL : Long.parseLong(mbi);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Values of " + BERKLEY_MEMORY_BUDGET + " and "
+					+ BERKLEY_MEMORY_BUDGET_INTERVAL + " must be numbers");
+		}
+		if (memoryBudget != null && sharedCache) {
+			LOG.warn("Ignoring " + BERKLEY_MEMORY_BUDGET + " for cache: " + cacheName + ", it uses "
+					+ BERKLEY_SHARED);
+			memoryBudget = null;
+		}
+		preload = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_PRELOAD);
+		if (preload != null) {
+			preload = preload.trim().toUpperCase(Locale.ROOT);
+			if (!PRELOAD_INTERNAL.equals(preload) && !PRELOAD_ALL.equals(preload)) {
+				throw new IllegalArgumentException("Value of " + BERKLEY_PRELOAD + " must be "
+						+ PRELOAD_INTERNAL + " or " + PRELOAD_ALL);
+			}
+		}
+		String pmm = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_PRELOAD_MAX_MILLIS);
+		String pmb = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_PRELOAD_MAX_BYTES);
+		try {
+			preloadMaxMillis = pmm == null ? 0 : Long.parseLong(pmm);
+			preloadMaxBytes = pmb == null ? 0 : Long.parseLong(pmb);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Values of " + BERKLEY_PRELOAD_MAX_MILLIS + " and "
+					+ BERKLEY_PRELOAD_MAX_BYTES + " must be numbers");
+		}
+		preloadInBackground = "true".equalsIgnoreCase(
+				CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_PRELOAD_IN_BACKGROUND));
+		String hks = CachePropertyUtil.getAttributeValueAsString(context, BERKLEY_HOT_KEYS);
+		if (hks != null) {
+			try {
+				hotKeysSize = Integer.parseInt(hks);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Value of " + BERKLEY_HOT_KEYS + " must be a number");
+			}
+		} else {
+			hotKeysSize = 0;
+		}
 		Object names = CachePropertyUtil.getAttributeValue(context,
 				DIHCachePersistProperties.FIELD_NAMES);
 		if (names != null) {
@@ -203,17 +676,52 @@ public class BerkleyBackedCache implements DIHCache {
 		pkColumn = CachePropertyUtil.getAttributeValueAsString(context,
 				DIHCacheSupport.CACHE_PRIMARY_KEY);
 
-		init();
+		if (readOnly && currentGeneration != null) {
+			openGeneration(currentGeneration);
+		} else {
+			init();
+		}
+	}
+
+	/**
+	 * Opens "generation" for reading. A writer may have replaced it, and the
+	 * reaper deleted it, since it was looked up; then the current one is
+	 * opened instead.
+	 */
+	private void openGeneration(String generation) {
+		for (int attempt = 1; ; attempt++) {
+			storeName = generation;
+			try {
+				init();
+				return;
+			} catch (RuntimeException e) {
+				String current = currentGeneration();
+				if (attempt == 3 || current == null || current.equals(generation)) {
+					throw e;
+				}
+				LOG.info("Generation " + generation + " of cache: " + cacheName + " is gone, opening " + current);
+				generation = current;
+			}
+		}
+	}
+
+	private String currentGeneration() {
+		try {
+			return BerkleyGenerations.current(new File(baseLoc), cacheName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	private void init() {
 		try {
-			File f = new File(baseLoc + File.separator + cacheName);
-			f.mkdirs();
+			File f = getCacheDirectory();
+			if (!readOnly) {
+				f.mkdirs();
+			}
 
 			cacheProperties = new Properties();
-			File propsFile = new File(baseLoc + File.separator + cacheName
-					+ "_cache.properties");
+			File propsFile = getPropertiesFile();
 			if (propsFile.exists()) {
 				InputStream is = null;
 				try {
@@ -233,32 +741,114 @@ public class BerkleyBackedCache implements DIHCache {
 								+ propsFile);
 			}
 
-			EnvironmentConfig envConfig = new EnvironmentConfig();
-			if (transactional) {
-				envConfig.setTransactional(true);
-			}
-			envConfig.setAllowCreate(true);
-			if (internalCacheSize != null) {
-				envConfig.setCacheSize(internalCacheSize);
+			if (sharedEnvironment) {
+				env = BerkleyEnvironmentRegistry.acquire(getSharedEnvironmentHome(), newEnvironmentConfig(readOnly));
 			} else {
-				envConfig.setCachePercent(2);
+				env = new BerkleyEnvironment(f, newEnvironmentConfig(readOnly));
+			}
+			if (memoryBudget != null) {
+				BerkleyMemoryBudget.register(env, memoryBudget, memoryBudgetInterval);
+				budgeted = true;
 			}
-			envConfig.setCacheMode(cacheMode);
-			envConfig.setSharedCache(sharedCache);
-			envConfig.setConfigParam("je.log.fileMax", "1000000000"); // 1gb max file
-			// size
-			env = new BerkleyEnvironment(f, envConfig);
 
 			DatabaseConfig dbConfig = new DatabaseConfig();
+			// the environment's mode may have been set by another cache
+			dbConfig.setCacheMode(cacheMode);
 			if (transactional) {
 				dbConfig.setTransactional(true);
-			} else {
+			} else if (!readOnly) {
 				dbConfig.setDeferredWrite(true);
 			}
-			dbConfig.setAllowCreate(true);
+			dbConfig.setAllowCreate(!readOnly);
 			dbConfig.setReadOnly(readOnly);
 			dbConfig.setSortedDuplicates(false);
 			db = env.openDatabase(null, cacheName, dbConfig);
+			changedKeys = rememberChangedKeys && !readOnly
+					? new BerkleyChangedKeys(env, cacheName + CHANGED_KEYS_DATABASE_SUFFIX, changedKeysMemory)
+					: null;
+
+			String storage = (String) cacheProperties.get(CACHE_PROP_FOR_STORAGE);
+			String formatVersion = (String) cacheProperties.get(CACHE_PROP_FOR_FORMAT_VERSION);
+			boolean newCache = storage == null && cacheProperties.get(CACHE_PROP_FOR_NAMES) == null;
+			boolean propsChanged = false;
+			if (formatVersion == null) {
+				// caches written before the property existed use the legacy format
+				formatVersion = String.valueOf(newCache ? recordFormatRequested : FORMAT_LEGACY);
+				cacheProperties.put(CACHE_PROP_FOR_FORMAT_VERSION, formatVersion);
+				if (newCache && recordFormatRequested == FORMAT_COMPACT) {
+					cacheProperties.put(CACHE_PROP_FOR_STRING_DICTIONARIES,
+							Boolean.toString(stringDictionarySize > 0));
+				}
+				propsChanged = true;
+			}
+			if (cacheProperties.get(CACHE_PROP_FOR_KEY_FORMAT) == null
+					&& cacheProperties.get(CACHE_PROP_FOR_NAMES) != null) {
+				// caches written before the property existed have tuple keys
+				cacheProperties.put(CACHE_PROP_FOR_KEY_FORMAT, String.valueOf(KEY_FORMAT_TUPLE));
+				propsChanged = true;
+			}
+			if (storage == null) {
+				if (cacheProperties.get(CACHE_PROP_FOR_NAMES) != null || !appendDuplicatesRequested) {
+					storage = STORAGE_LIST;
+				} else {
+					storage = STORAGE_APPEND;
+				}
+				cacheProperties.put(CACHE_PROP_FOR_STORAGE, storage);
+				propsChanged = true;
+			}
+			if (propsChanged && !readOnly) {
+				writeProperties();
+			}
+			appendDuplicates = STORAGE_APPEND.equals(storage);
+			useStringDictionaries = "true".equals(cacheProperties.get(CACHE_PROP_FOR_STRING_DICTIONARIES));
+			compressionThreshold = -1;
+			if (compressionThresholdRequested >= 0 && !readOnly) {
+				if (Integer.parseInt(formatVersion) == FORMAT_LEGACY) {
+					LOG.warn("Ignoring " + BERKLEY_COMPRESSION_THRESHOLD + " for cache: " + cacheName
+							+ ", it uses record format " + FORMAT_LEGACY);
+				} else {
+					compressionThreshold = compressionThresholdRequested;
+					if (cacheProperties.get(CACHE_PROP_FOR_COMPRESSION) == null) {
+						cacheProperties.put(CACHE_PROP_FOR_COMPRESSION, COMPRESSION_DEFLATE);
+						writeProperties();
+					}
+				}
+			}
+			stringDictionaries = null;
+			dictionaries = null;
+			switch (Integer.parseInt(formatVersion)) {
+				case FORMAT_LEGACY:
+					recordFormat = new LegacyRecordFormat();
+					break;
+				case FORMAT_COMPACT:
+					recordFormat = new CompactRecordFormat();
+					break;
+				default:
+					throw new IllegalStateException("Unsupported record format version " + formatVersion
+							+ " in " + propsFile);
+			}
+			orderedKeys = false;
+			String nextSeq = (String) cacheProperties.get(CACHE_PROP_FOR_NEXT_SEQUENCE);
+			nextSequence = nextSeq == null ? 0 : Long.parseLong(nextSeq);
+			sequenceChanged = false;
+			File bloomFile = new File(f, BLOOM_FILTER_FILE);
+			bloomFilter = null;
+			if (readOnly) {
+				try {
+					bloomFilter = BerkleyBloomFilter.load(bloomFile);
+				} catch (IOException e) {
+					LOG.warn("Ignoring unreadable bloom filter of cache: " + cacheName, e);
+				}
+			} else if (bloomFile.exists() && !bloomFile.delete()) {
+				// it won't know about the keys about to be added
+				throw new IOException("Could not delete stale bloom filter: " + bloomFile);
+			}
+			rowCache = rowCacheSize > 0 ? new BerkleyRowCache(rowCacheSize) : null;
+			if (bulkLoad && !readOnly) {
+				bulkLoadSorter = new BerkleyRunFileSorter(f, "bulk-load", bulkLoadBufferSize);
+			} else {
+				bulkLoadSorter = null;
+			}
 
 			columns = passedInColumns;
 			types = passedInTypes;
@@ -285,12 +875,103 @@ public class BerkleyBackedCache implements DIHCache {
 					}
 				}
 			}
+			if (columns != null) {
+				compileColumnPlan();
+				if (chooseKeyFormat() && !readOnly) {
+					writeProperties();
+				}
+			}
+			if (preload != null) {
+				preloader = new BerkleyPreloader(db, cacheName, PRELOAD_ALL.equals(preload), preloadMaxBytes,
+						preloadMaxMillis);
+				if (preloadInBackground) {
+					preloader.start();
+				} else {
+					preloader.run();
+				}
+			}
+			hotKeys = null;
+			if (readOnly && hotKeysSize > 0) {
+				hotKeys = new BerkleyHotKeys(hotKeysSize);
+				List<byte[]> keys = null;
+				try {
+					keys = BerkleyHotKeys.load(getHotKeysFile());
+				} catch (IOException e) {
+					LOG.warn("Ignoring unreadable hot keys of cache: " + cacheName, e);
+				}
+				if (keys != null && !keys.isEmpty()) {
+					hotKeys.startPrefetch(db, cacheName, keys, appendDuplicates);
+				}
+			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
 	}
 
+	/**
+	 * A read-only environment is opened without creating anything and without
+	 * the daemon threads, which only serve writers; eviction then runs in the
+	 * reading threads. JE shares a read-only environment with other processes,
+	 * including one that writes it. Without transactions, nothing in this
+	 * process writes to it, so it doesn't need locks either.
+	 */
+	private EnvironmentConfig newEnvironmentConfig(boolean readOnlyEnv) {
+		EnvironmentConfig envConfig = new EnvironmentConfig();
+		if (transactional) {
+			envConfig.setTransactional(true);
+		}
+		if (readOnlyEnv) {
+			envConfig.setReadOnly(true);
+			envConfig.setAllowCreate(false);
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_IN_COMPRESSOR, "false");
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_EVICTOR, "false");
+			if (!transactional) {
+				envConfig.setLocking(false);
+			}
+		} else {
+			envConfig.setAllowCreate(true);
+		}
+		if (internalCacheSize != null) {
+			envConfig.setCacheSize(internalCacheSize);
+		} else {
+			envConfig.setCachePercent(2);
+		}
+		envConfig.setCacheMode(cacheMode);
+		envConfig.setSharedCache(sharedCache);
+		envConfig.setConfigParam("je.log.fileMax", "1000000000"); // 1gb max file
+		// size
+		if (bulkImport && !readOnlyEnv) {
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
+			envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+			// the cleaner never cleans the last file, so smaller files leave less behind
+			envConfig.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, Long.toString(BULK_IMPORT_LOG_FILE_MAX));
+			// the cleaner only runs at close, so it may as well clean every file it can
+			envConfig.setConfigParam(EnvironmentConfig.CLEANER_MIN_UTILIZATION, "90");
+			envConfig.setConfigParam(EnvironmentConfig.CLEANER_MIN_FILE_UTILIZATION, "50");
+			envConfig.setConfigParam(EnvironmentConfig.CLEANER_MIN_AGE, "1");
+		}
+		return envConfig;
+	}
+
+	private File getCacheDirectory() {
+		return new File(baseLoc + File.separator + storeName);
+	}
+
+	private File getPropertiesFile() {
+		return new File(baseLoc + File.separator + storeName + "_cache.properties");
+	}
+
+	private File getHotKeysFile() {
+		return new File(baseLoc + File.separator + cacheName + "_cache.hotkeys");
+	}
+
+	private File getSharedEnvironmentHome() {
+		return new File(baseLoc + File.separator + SHARED_ENVIRONMENT_DIRECTORY);
+	}
+
 	private DIHCacheTypes[] getTypes() throws Exception {
 		String types = (String) cacheProperties.get(CACHE_PROP_FOR_TYPES);
 		if (types != null) {
@@ -336,8 +1017,7 @@ public class BerkleyBackedCache implements DIHCache {
 	}
 
 	private void writeProperties() throws Exception {
-		File propsFile = new File(baseLoc + File.separator + cacheName
-				+ "_cache.properties");
+		File propsFile = getPropertiesFile();
 		Writer w = null;
 		try {
 			w = new FileWriter(propsFile);
@@ -374,76 +1054,131 @@ public class BerkleyBackedCache implements DIHCache {
 		checkOpen(true);
 		long start = System.nanoTime();
 		try {
-			if (columns == null) {
-				buildColumnsAndTypes(rec);
-				if (!readOnly) {
-					putNames(columns);
-					putTypes(types);
-					LOG.info("FIELD NAMES: " + Arrays.asList(getNames()).toString());
-					LOG.info("FIELD TYPES: " + Arrays.asList(getTypes()).toString());
+			if (!columnsReady) {
+				synchronized (this) {
+					if (columns == null) {
+						buildColumnsAndTypes(rec);
+						if (!readOnly) {
+							putNames(columns);
+							putTypes(types);
+							LOG.info("FIELD NAMES: " + Arrays.asList(getNames()).toString());
+							LOG.info("FIELD TYPES: " + Arrays.asList(getTypes()).toString());
+						}
+					}
+					columnsReady = true;
 				}
 			}
 
-			TupleBinding<Object> keyBind = new PrimaryKeyTupleBinding();
-			DatabaseEntry theKey = new DatabaseEntry();
+			Codec codec = codecs.get();
 			Object keyObj = null;
-			Object[] data = new Object[types.length - 1];
+			Object[] data = codec.row(dataTypes.length);
 
 			for (Map.Entry<String, Object> entry : rec.entrySet()) {
 				int i = getColumnIndex(entry.getKey());
-				if (i != pkColumnIndex) {
-					if (i > pkColumnIndex) {
-						i--;
-					}
-					if (i < 0) {
-						LOG
-								.warn("Skipped data element: "
-										+ entry.getKey()
-										+ " because either it was not specified in the first row of data or not in parameters: "
-										+ DIHCachePersistProperties.FIELD_NAMES + " & "
-										+ DIHCachePersistProperties.FIELD_TYPES);
+				if (i < 0) {
+					LOG
+							.warn("Skipped data element: "
+									+ entry.getKey()
+									+ " because either it was not specified in the first row of data or not in parameters: "
+									+ DIHCachePersistProperties.FIELD_NAMES + " & "
+									+ DIHCachePersistProperties.FIELD_TYPES);
+				} else if (i != pkColumnIndex) {
+					if (entry.getValue() instanceof List
+							&& ((List) entry.getValue()).size() == 1) {
+						data[dataSlots[i]] = ((List) entry.getValue()).get(0);
 					} else {
-						if (entry.getValue() instanceof List
-								&& ((List) entry.getValue()).size() == 1) {
-							data[i] = ((List) entry.getValue()).get(0);
-						} else {
-							data[i] = entry.getValue();
-						}
+						data[dataSlots[i]] = entry.getValue();
 					}
 				} else {
 					keyObj = entry.getValue();
-					keyBind.objectToEntry(keyObj, theKey);
 				}
 			}
-
-			List<Object[]> priorData = null;
-			if (disableDuplicateAdds
-					|| (rememberChangedKeys && !changedKeys.contains(keyObj))) {
-				delete(keyObj);
-			} else {
-				priorData = get(theKey);
-			}
-			if (priorData == null) {
-				priorData = new ArrayList<Object[]>(1);
+			DatabaseEntry theKey = codec.encodeKey(keyObj);
+			TupleOutput to = codec.dataOutput;
+			to.reset();
+			if (bulkLoadSorter != null) {
+				recordFormat.writeRow(data, to);
+				byte[] keyBytes = toBytes(theKey);
+				byte[] rowBytes = to.toByteArray();
+				synchronized (this) {
+					bulkLoadSorter.add(keyBytes, rowBytes);
+				}
+				totalTimeNano.add(System.nanoTime() - start);
+				return;
 			}
-			priorData.add(data);
 
-			TupleBinding<List<Object[]>> bind = new CacheTupleBinding();
-			DatabaseEntry theData = new DatabaseEntry();
-			bind.objectToEntry(priorData, theData);
-			db.put(null, theKey, theData);
+			synchronized (keyLock(theKey)) {
+				if (rowCache != null) {
+					rowCache.remove(theKey.getData(), theKey.getOffset(), theKey.getSize());
+				}
+				for (KeyOrderedLookup lookup : keyOrderedLookups) {
+					lookup.reset();
+				}
+				// an appended sequence goes after the key, which stays in place
+				int keySize = theKey.getSize();
+				DatabaseEntry priorData = null;
+				// a list record is read and rewritten through one cursor, which
+				// saves the locker, the cursor and the tree search of a second
+				// operation; transactional writes keep auto-committing db.put
+				Cursor cursor = null;
+				boolean changedBefore = changedKeys != null
+						&& changedKeys.contains(theKey.getData(), theKey.getOffset(), keySize);
+				try {
+					if (disableDuplicateAdds || (changedKeys != null && !changedBefore)) {
+						deleteKey(theKey);
+					} else if (!appendDuplicates) {
+						// the new row is appended to the stored rows without decoding them
+						priorData = codec.dataEntry;
+						OperationStatus status;
+						if (transactional) {
+							status = db.get(null, theKey, priorData, LockMode.DEFAULT);
+						} else {
+							cursor = db.openCursor(null, null);
+							status = cursor.getSearchKey(theKey, priorData, LockMode.DEFAULT);
+						}
+						if (status != OperationStatus.SUCCESS) {
+							priorData = null;
+						}
+					}
+					recordFormat.startRecord(to, priorData, 1);
+					recordFormat.writeRow(data, to);
+					recordFormat.endRow(to, true);
+					if (appendDuplicates) {
+						appendSequence(codec.keyOutput);
+						theKey.setData(codec.keyOutput.getBufferBytes(), 0, codec.keyOutput.getBufferLength());
+					}
+					if (transactional) {
+						// the record is committed right away, so must be the codes it uses
+						saveStringDictionaries();
+					}
+					DatabaseEntry theData = codec.dataEntry;
+					recordFormat.setRecord(theData, to);
+					if (cursor == null) {
+						db.put(null, theKey, theData);
+					} else if (priorData != null) {
+						cursor.putCurrent(theData);
+					} else {
+						cursor.put(theKey, theData);
+					}
+				} finally {
+					if (cursor != null) {
+						cursor.close();
+					}
+				}
 
-			if (rememberChangedKeys) {
-				if (changedKeysArriveInOrder) {
-					changedKeys.clear();
+				// a key already recorded is the one the set holds in arrival order
+				if (changedKeys != null && !changedBefore) {
+					if (changedKeysArriveInOrder) {
+						changedKeys.clear();
+					}
+					changedKeys.add(theKey.getData(), theKey.getOffset(), keySize);
 				}
-				changedKeys.add(keyObj);
 			}
 		} catch (Exception e) {
 			LOG.warn("Exception thrown: " + e);
 			throw new RuntimeException(e);
 		}
-		totalTimeNano += (System.nanoTime() - start);
+		totalTimeNano.add(System.nanoTime() - start);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -493,47 +1228,315 @@ public class BerkleyBackedCache implements DIHCache {
 			LOG.info("Assuming " + pkColumn
 					+ " is the primary key because it was not explicitly set...");
 		}
+		compileColumnPlan();
+		// written with the names and types
+		chooseKeyFormat();
 	}
 
-	@Override
-	public void close() {
-		checkOpen(true);
-		if (!readOnly) {
-			flush();
+	/**
+	 * Reads the key format from the properties, or picks the one of a new cache
+	 * now that its primary key type is known (see {@link #BERKLEY_KEY_FORMAT}).
+	 * Returns true if it was picked.
+	 */
+	private boolean chooseKeyFormat() {
+		String keyFormat = (String) cacheProperties.get(CACHE_PROP_FOR_KEY_FORMAT);
+		boolean picked = keyFormat == null;
+		if (picked) {
+			int version = keyFormatRequested;
+			if (version == 0) {
+				version = types[pkColumnIndex] == DIHCacheTypes.BIGDECIMAL ? KEY_FORMAT_TUPLE : KEY_FORMAT_ORDERED;
+			}
+			keyFormat = String.valueOf(version);
+			cacheProperties.put(CACHE_PROP_FOR_KEY_FORMAT, keyFormat);
 		}
-
-		LOG.info("Total read/write time for cache: " + cacheName + " was "
-				+ (totalTimeNano / 1000000) + " ms");
-
-		for (BerkleyBackedCacheIterator iter : iterators) {
-			iter.close();
+		switch (Integer.parseInt(keyFormat)) {
+			case KEY_FORMAT_TUPLE:
+				orderedKeys = false;
+				break;
+			case KEY_FORMAT_ORDERED:
+				orderedKeys = true;
+				break;
+			default:
+				throw new IllegalStateException("Unsupported key format version " + keyFormat + " of cache: "
+						+ cacheName);
 		}
-		iterators = new ArrayList<BerkleyBackedCacheIterator>();
+		return picked;
+	}
 
-		if (db != null) {
-			try {
-				db.close();
-			} catch (Exception e) {
-				LOG.warn("couldn't close db for cache: " + cacheName);
+	/**
+	 * Precomputes the mapping between the cache's columns and the slots of the
+	 * stored rows (every column but the primary key), so the per-row encode and
+	 * decode paths don't have to compare column names.
+	 */
+	private void compileColumnPlan() {
+		if (pkColumn != null) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].equals(pkColumn)) {
+					pkColumnIndex = i;
+					break;
+				}
 			}
+		} else {
+			pkColumn = columns[pkColumnIndex];
+			LOG.info("Assuming " + pkColumn
+					+ " is the primary key because it was not explicitly set...");
 		}
-		if (env != null) {
-			try {
-				env.close();
-			} catch (Exception e) {
-				LOG.warn("couldn't close environment for cache: " + cacheName);
+		DIHCacheTypes pkType = types[pkColumnIndex];
+		longKeyType = pkType == DIHCacheTypes.INTEGER || pkType == DIHCacheTypes.LONG
+				|| pkType == DIHCacheTypes.BIGDECIMAL_INTEGER ? pkType : null;
+		dataSlots = new int[columns.length];
+		dataColumns = new String[columns.length - 1];
+		dataTypes = new DIHCacheTypes[columns.length - 1];
+		columnIndexes = new HashMap<String, Integer>();
+		columnIndexesIgnoreCase = new HashMap<String, Integer>();
+		dataSlotsByName = new HashMap<String, Integer>();
+		int j = 0;
+		for (int i = 0; i < columns.length; i++) {
+			columnIndexes.put(columns[i], i);
+			String lower = columns[i].toLowerCase(Locale.ROOT);
+			if (!columnIndexesIgnoreCase.containsKey(lower)) {
+				columnIndexesIgnoreCase.put(lower, i);
+			}
+			if (i == pkColumnIndex) {
+				dataSlots[i] = -1;
+			} else {
+				dataSlots[i] = j;
+				dataSlotsByName.put(columns[i], j);
+				dataColumns[j] = columns[i];
+				dataTypes[j] = types[i];
+				j++;
+			}
+		}
+		if (useStringDictionaries) {
+			loadStringDictionaries();
+		}
+	}
+
+	/**
+	 * Builds the Bloom filter from a key-only scan of the database and stores it
+	 * in the cache directory.
+	 */
+	private void writeBloomFilter() {
+		long start = System.nanoTime();
+		BerkleyBloomFilter filter = BerkleyBloomFilter.create(db.count(), bloomFilterFalsePositiveRate,
+				bloomFilterMaxBytes);
+		long keys = 0;
+		Cursor cursor = db.openCursor(null, null);
+		try {
+			DatabaseEntry theKey = new DatabaseEntry();
+			DatabaseEntry noData = new DatabaseEntry();
+			noData.setPartial(0, 0, true);
+			int suffix = appendDuplicates ? SEQUENCE_LENGTH : 0;
+			while (cursor.getNext(theKey, noData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+				filter.add(theKey.getData(), theKey.getOffset(), theKey.getSize() - suffix);
+				keys++;
+			}
+		} finally {
+			cursor.close();
+		}
+		try {
+			filter.save(new File(getCacheDirectory(), BLOOM_FILTER_FILE));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write the bloom filter of cache: " + cacheName, e);
+		}
+		LOG.info("Wrote a bloom filter of " + filter.getByteSize() + " bytes (" + filter.getHashCount()
+				+ " hashes) over " + keys + " records of cache: " + cacheName + " in "
+				+ ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+	private File getStringDictionaryFile() {
+		return new File(getCacheDirectory(), STRING_DICTIONARY_FILE);
+	}
+
+	/**
+	 * Loads the dictionaries of the STRING columns, creating empty ones for
+	 * columns that don't have one yet.
+	 */
+	private void loadStringDictionaries() {
+		try {
+			stringDictionaries = BerkleyStringDictionary.load(getStringDictionaryFile(), stringDictionarySize);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read the string dictionaries of cache: " + cacheName, e);
+		}
+		BerkleyStringDictionary[] bySlot = new BerkleyStringDictionary[dataTypes.length];
+		for (int j = 0; j < dataTypes.length; j++) {
+			if (dataTypes[j] == DIHCacheTypes.STRING) {
+				BerkleyStringDictionary dictionary = stringDictionaries.get(dataColumns[j]);
+				if (dictionary == null) {
+					dictionary = new BerkleyStringDictionary(stringDictionarySize);
+					stringDictionaries.put(dataColumns[j], dictionary);
+				}
+				bySlot[j] = dictionary;
+			}
+		}
+		dictionaries = bySlot;
+	}
+
+	/**
+	 * Persists the string dictionaries if codes were added since they were last
+	 * written. This must happen before records using the new codes are durable.
+	 */
+	private synchronized void saveStringDictionaries() {
+		if (stringDictionaries == null || readOnly) {
+			return;
+		}
+		boolean dirty = false;
+		for (BerkleyStringDictionary dictionary : stringDictionaries.values()) {
+			dirty |= dictionary.isDirty();
+		}
+		if (dirty) {
+			try {
+				BerkleyStringDictionary.save(getStringDictionaryFile(), stringDictionaries);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write the string dictionaries of cache: " + cacheName, e);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		checkOpen(true);
+		if (preloader != null) {
+			preloader.cancel();
+			preloader = null;
+		}
+		if (hotKeys != null) {
+			hotKeys.cancel();
+			if (hotKeys.getSampled() > 0) {
+				try {
+					List<byte[]> keys = hotKeys.top();
+					BerkleyHotKeys.save(getHotKeysFile(), keys);
+					LOG.info("Saved " + keys.size() + " hot keys of cache: " + cacheName + " from "
+							+ hotKeys.getSampled() + " sampled lookups");
+				} catch (IOException e) {
+					LOG.warn("Could not save the hot keys of cache: " + cacheName, e);
+				}
+			}
+			hotKeys = null;
+		}
+		if (!readOnly) {
+			flush();
+			if (buildBloomFilter) {
+				writeBloomFilter();
+			}
+			if (bulkImport) {
+				compactLog();
 			}
 		}
-		env = null;
-		db = null;
 
-		if (rememberChangedKeys) {
+		LOG.info("Total read/write time for cache: " + cacheName + " was "
+				+ (totalTimeNano.sum() / 1000000) + " ms");
+		if (rowCache != null) {
+			LOG.info("Lookup result cache of cache: " + cacheName + ": " + rowCache.getStats());
+		}
+		if (bloomFilter != null) {
+			LOG.info("Bloom filter answered " + bloomFilterMisses.sum() + " lookups of cache: " + cacheName);
+		}
+		if (compressedRecords.sum() > 0) {
+			LOG.info("Compressed " + compressedRecords.sum() + " record writes of cache: " + cacheName + " from "
+					+ compressedBytesIn.sum() + " to " + compressedBytesOut.sum() + " bytes");
+		}
+
+		if (bulkLoadSorter != null) {
+			bulkLoadSorter.clear();
+			bulkLoadSorter = null;
+		}
+
+		for (BerkleyBackedCacheIterator iter : iterators) {
+			iter.close();
+		}
+		iterators = new CopyOnWriteArrayList<BerkleyBackedCacheIterator>();
+		for (KeyOrderedLookup lookup : keyOrderedLookups) {
+			lookup.close();
+		}
+		keyOrderedLookups = new CopyOnWriteArrayList<KeyOrderedLookup>();
+
+		if (changedKeys != null) {
+			LOG.info("Tracked " + changedKeys.getStats() + " of cache: " + cacheName);
 			changedKeys.clear();
-		} else {
 			changedKeys = null;
 		}
+		if (db != null) {
+			try {
+				db.close();
+			} catch (Exception e) {
+				LOG.warn("couldn't close db for cache: " + cacheName);
+			}
+		}
+		if (env != null) {
+			if (budgeted) {
+				BerkleyMemoryBudget.unregister(env);
+				budgeted = false;
+			}
+			try {
+				if (sharedEnvironment) {
+					BerkleyEnvironmentRegistry.release(env);
+				} else {
+					env.close();
+				}
+			} catch (Exception e) {
+				LOG.warn("couldn't close environment for cache: " + cacheName);
+			}
+		}
+		env = null;
+		db = null;
+
+		columnsReady = false;
+		totalTimeNano.reset();
+		bloomFilter = null;
+		bloomFilterMisses.reset();
+		rowCache = null;
+		compressedRecords.reset();
+		compressedBytesIn.reset();
+		compressedBytesOut.reset();
+
+		if (newGeneration) {
+			newGeneration = false;
+			File baseDir = new File(baseLoc);
+			try {
+				BerkleyGenerations.publish(baseDir, cacheName, storeName);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not publish generation " + storeName + " of cache: " + cacheName, e);
+			}
+			BerkleyGenerations.reapInBackground(baseDir, cacheName);
+		}
+	}
+
+	/**
+	 * Checkpoints the log of a {@link #BERKLEY_BULK_IMPORT} (the import ran
+	 * without any), cleans it until the cleaner finds no more files to clean,
+	 * and checkpoints again, after which JE deletes the cleaned files.
+	 */
+	private void compactLog() {
+		long start = System.currentTimeMillis();
+		File home = env.getHome();
+		CheckpointConfig force = new CheckpointConfig();
+		force.setForce(true);
+		env.checkpoint(force);
+		long before = getLogSize(home);
+		int cleaned = 0;
+		int n;
+		while ((n = env.cleanLog()) > 0) {
+			cleaned += n;
+		}
+		env.checkpoint(force);
+		long after = getLogSize(home);
+		LOG.info("Compacted the log of cache: " + cacheName + " from " + before + " to " + after + " bytes ("
+				+ (before - after) + " reclaimed, " + cleaned + " files cleaned) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
 
-		totalTimeNano = 0;
+	private static long getLogSize(File home) {
+		long size = 0;
+		File[] logs = home.listFiles();
+		if (logs != null) {
+			for (File log : logs) {
+				if (log.getName().endsWith(".jdb")) {
+					size += log.length();
+				}
+			}
+		}
+		return size;
 	}
 
 	@Override
@@ -541,9 +1544,27 @@ public class BerkleyBackedCache implements DIHCache {
 		checkOpen(true);
 		if (!readOnly && env != null) {
 			long start = System.nanoTime();
-			env.sync();
+			loadSortedRuns();
+			saveStringDictionaries();
+			if (bulkImport) {
+				// close() syncs once, before compacting the log
+			} else if (sharedEnvironment && !transactional) {
+				// only this cache's deferred writes, not those of the other caches
+				db.sync();
+			} else {
+				env.sync();
+			}
+			if (sequenceChanged) {
+				cacheProperties.put(CACHE_PROP_FOR_NEXT_SEQUENCE, Long.toString(nextSequence()));
+				try {
+					writeProperties();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				sequenceChanged = false;
+			}
 			long end = System.nanoTime();
-			totalTimeNano += (end - start);
+			totalTimeNano.add(end - start);
 		}
 	}
 
@@ -552,23 +1573,48 @@ public class BerkleyBackedCache implements DIHCache {
 		checkOpen(true);
 		try {
 			long start = System.nanoTime();
-
-			TupleBinding<Object> keyBind = new PrimaryKeyTupleBinding();
-			DatabaseEntry theKey = new DatabaseEntry();
-			keyBind.objectToEntry(key, theKey);
-
-			db.delete(null, theKey);
-			totalTimeNano += (System.nanoTime() - start);
+			loadSortedRuns();
+			DatabaseEntry theKey = codecs.get().encodeKey(key);
+			synchronized (keyLock(theKey)) {
+				if (rowCache != null) {
+					rowCache.remove(theKey.getData(), theKey.getOffset(), theKey.getSize());
+				}
+				for (KeyOrderedLookup lookup : keyOrderedLookups) {
+					lookup.reset();
+				}
+				deleteKey(theKey);
+			}
+			totalTimeNano.add(System.nanoTime() - start);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
 	}
 
+	private void deleteKey(DatabaseEntry theKey) {
+		if (appendDuplicates) {
+			deleteAppended(theKey);
+		} else {
+			db.delete(null, theKey);
+		}
+	}
+
 	@Override
 	public void deleteAll() {
 		checkOpen(true);
-		destroy();
+		if (generations && !readOnly) {
+			// close() mustn't publish the generation being replaced
+			boolean unpublished = newGeneration;
+			newGeneration = false;
+			close();
+			storeName = BerkleyGenerations.next(new File(baseLoc), cacheName);
+			newGeneration = true;
+			if (unpublished) {
+				BerkleyGenerations.reapInBackground(new File(baseLoc), cacheName);
+			}
+		} else {
+			destroy();
+		}
 		init();
 	}
 
@@ -578,7 +1624,31 @@ public class BerkleyBackedCache implements DIHCache {
 			close();
 		}
 		LOG.debug("running destroy for cache: " + cacheName);
-		File f = new File(baseLoc + File.separator + cacheName);
+		if (generations) {
+			File baseDir = new File(baseLoc);
+			BerkleyGenerations.unpublish(baseDir, cacheName);
+			// generations still open are left for a later reaper
+			BerkleyGenerations.reap(baseDir, cacheName, true);
+			newGeneration = false;
+			storeName = cacheName;
+			return;
+		}
+		if (sharedEnvironment && getSharedEnvironmentHome().exists()) {
+			try {
+				BerkleyEnvironment shared = BerkleyEnvironmentRegistry.acquire(getSharedEnvironmentHome(),
+						newEnvironmentConfig(false));
+				try {
+					shared.removeDatabase(null, cacheName);
+				} catch (DatabaseNotFoundException e) {
+					// nothing to remove
+				} finally {
+					BerkleyEnvironmentRegistry.release(shared);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		File f = getCacheDirectory();
 		File[] filesToDelete = f.listFiles();
 		if (filesToDelete != null) {
 			for (File f1 : f.listFiles()) {
@@ -588,8 +1658,7 @@ public class BerkleyBackedCache implements DIHCache {
 			if (!deleted) {
 				throw new RuntimeException("Could not delete cache: " + f);
 			}
-			File propsFile = new File(baseLoc + File.separator + cacheName
-					+ "_cache.properties");
+			File propsFile = getPropertiesFile();
 			deleted = propsFile.delete();
 			if (!deleted) {
 				LOG.warn("Could not delete cache Property File: " + propsFile);
@@ -598,80 +1667,510 @@ public class BerkleyBackedCache implements DIHCache {
 	}
 
 	private List<Map<String, Object>> parseData(DatabaseEntry theKey, DatabaseEntry theData) throws Exception {
-		TupleBinding<Object> keyBind = new PrimaryKeyTupleBinding();
-		Object keyObj = keyBind.entryToObject(theKey);
-
-		TupleBinding<List<Object[]>> bind = new CacheTupleBinding();
-		List<Object[]> objsList = bind.entryToObject(theData);
-		List<Map<String, Object>> mapList = new ArrayList<Map<String, Object>>(
-				objsList.size());
-
-		for (Object[] objs : objsList) {
-			Map<String, Object> theMap = new HashMap<String, Object>();
-			theMap.put(pkColumn, keyObj);
-			int j = 0;
-			for (int i = 0; i < columns.length; i++) {
-				if (!columns[i].equals(pkColumn)) {
-					if (objs[j] != null) {
-						theMap.put(columns[i], objs[j]);
-					}
-					j++;
+		return parseData(theKey, theData, new ArrayList<Map<String, Object>>(2));
+	}
+
+	private List<Map<String, Object>> parseData(DatabaseEntry theKey, DatabaseEntry theData,
+												List<Map<String, Object>> mapList) throws Exception {
+		TupleInput ti = codecs.get().input(theKey);
+		Object keyObj = keyBinding.entryToObject(ti);
+		theData = recordFormat.openRecord(theData);
+		ti = codecs.get().input(theData);
+		recordFormat.readRows(ti, theData.getData(), keyObj, mapList);
+		return mapList;
+	}
+
+	@Override
+	public Object decodeColumn(int slot, byte[] buf, int offset) {
+		ReusableTupleInput ti = codecs.get().input;
+		int start = offset >= 0 ? offset : -offset - 2;
+		ti.setBuffer(buf, start, buf.length - start);
+		return recordFormat.readColumn(slot, ti, offset);
+	}
+
+	/**
+	 * Appends the next insertion sequence number to an encoded primary key. The
+	 * sequence is written big-endian so that JE's byte-wise key order keeps the
+	 * rows of one primary key in insertion order.
+	 */
+	private void appendSequence(TupleOutput keyOutput) {
+		long seq;
+		synchronized (this) {
+			seq = nextSequence++;
+			sequenceChanged = true;
+		}
+		for (int i = SEQUENCE_LENGTH - 1; i >= 0; i--) {
+			keyOutput.writeFast((byte) (seq >>> (8 * i)));
+		}
+	}
+
+	private synchronized long nextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Opens a lookup for keys that arrive in ascending order, see
+	 * {@link KeyOrderedLookup}. It is closed with the cache.
+	 */
+	KeyOrderedLookup openKeyOrderedLookup() {
+		checkOpen(true);
+		KeyOrderedLookup lookup = new KeyOrderedLookup(true);
+		keyOrderedLookups.add(lookup);
+		return lookup;
+	}
+
+	/**
+	 * Compares "size" bytes of "key" at "offset" with "target", the way the
+	 * database orders keys (unsigned, byte by byte).
+	 */
+	private static int compareKeyPrefix(byte[] key, int offset, int size, byte[] target) {
+		int len = Math.min(size, target.length);
+		for (int i = 0; i < len; i++) {
+			int diff = (key[offset + i] & 0xff) - (target[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return size - target.length;
+	}
+
+	private boolean isAppendedKeyOf(DatabaseEntry theKey, DatabaseEntry foundKey) {
+		if (foundKey.getSize() != theKey.getSize() + SEQUENCE_LENGTH) {
+			return false;
+		}
+		byte[] a = theKey.getData();
+		byte[] b = foundKey.getData();
+		int aOff = theKey.getOffset();
+		int bOff = foundKey.getOffset();
+		for (int i = 0; i < theKey.getSize(); i++) {
+			if (a[aOff + i] != b[bOff + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<Map<String, Object>> getAppended(DatabaseEntry theKey) throws Exception {
+		List<Map<String, Object>> mapList = null;
+		Cursor cursor = db.openCursor(null, null);
+		try {
+			DatabaseEntry foundKey = new DatabaseEntry(theKey.getData(), theKey.getOffset(), theKey.getSize());
+			DatabaseEntry theData = codecs.get().dataEntry;
+			OperationStatus os = cursor.getSearchKeyRange(foundKey, theData, LockMode.DEFAULT);
+			while (os == OperationStatus.SUCCESS && isAppendedKeyOf(theKey, foundKey)) {
+				if (mapList == null) {
+					mapList = new ArrayList<Map<String, Object>>();
 				}
+				parseData(foundKey, theData, mapList);
+				os = cursor.getNext(foundKey, theData, LockMode.DEFAULT);
 			}
-			mapList.add(theMap);
+		} finally {
+			cursor.close();
 		}
 		return mapList;
 	}
 
-	private List<Object[]> get(DatabaseEntry theKey) {
-		DatabaseEntry theData = new DatabaseEntry();
-		OperationStatus os = db.get(null, theKey, theData, LockMode.DEFAULT);
-		if (os != OperationStatus.SUCCESS) {
-			return null;
+	/**
+	 * Merges the rows buffered by {@link #BERKLEY_BULK_LOAD} and writes them in
+	 * key order. In list storage all rows of a key become one record; they
+	 * replace or extend what is already stored following the same
+	 * "disableDuplicateAdds" / "rememberChangedKeys" rules as "add(rec)".
+	 */
+	private void loadSortedRuns() {
+		if (bulkLoadSorter == null) {
+			return;
+		}
+		synchronized (this) {
+			if (!bulkLoadSorter.isEmpty()) {
+				mergeSortedRuns();
+			}
+		}
+	}
+
+	private void mergeSortedRuns() {
+		long start = System.nanoTime();
+		if (rowCache != null) {
+			rowCache.clear();
+		}
+		for (KeyOrderedLookup lookup : keyOrderedLookups) {
+			lookup.reset();
+		}
+		long rows = bulkLoadSorter.size();
+		int runCount = bulkLoadSorter.getRunCount();
+		final long[] keyCount = new long[1];
+		try {
+			bulkLoadSorter.merge(new BerkleyRunFileSorter.GroupHandler() {
+				@Override
+				public void group(byte[] key, List<byte[]> values) throws Exception {
+					keyCount[0]++;
+					Codec codec = codecs.get();
+					DatabaseEntry theKey = new DatabaseEntry(key);
+					boolean replace = disableDuplicateAdds;
+					if (changedKeys != null) {
+						if (!changedKeys.contains(key, 0, key.length)) {
+							replace = true;
+						}
+						if (changedKeysArriveInOrder) {
+							changedKeys.clear();
+						}
+						changedKeys.add(key, 0, key.length);
+					}
+					if (disableDuplicateAdds) {
+						values = values.subList(values.size() - 1, values.size());
+					}
+					if (appendDuplicates) {
+						if (replace) {
+							deleteAppended(theKey);
+						}
+						DatabaseEntry sequencedKey = codec.keyEntry;
+						for (byte[] value : values) {
+							codec.keyOutput.reset();
+							codec.keyOutput.writeFast(key);
+							appendSequence(codec.keyOutput);
+							sequencedKey.setData(codec.keyOutput.getBufferBytes(), 0, codec.keyOutput.getBufferLength());
+							writeRecord(sequencedKey, null, Collections.singletonList(value));
+						}
+					} else {
+						DatabaseEntry priorData = null;
+						if (!replace) {
+							priorData = codec.dataEntry;
+							if (db.get(null, theKey, priorData, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+								priorData = null;
+							}
+						}
+						writeRecord(theKey, priorData, values);
+					}
+				}
+			});
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		totalTimeNano.add(System.nanoTime() - start);
+		LOG.info("Bulk-loaded " + rows + " rows for " + keyCount[0] + " keys from "
+				+ runCount + " sorted runs into cache: " + cacheName + " in "
+				+ ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+	private static byte[] toBytes(DatabaseEntry entry) {
+		byte[] bytes = new byte[entry.getSize()];
+		System.arraycopy(entry.getData(), entry.getOffset(), bytes, 0, entry.getSize());
+		return bytes;
+	}
+
+	/**
+	 * Writes a record made of the prior rows (if any) followed by the already
+	 * encoded "rows".
+	 */
+	private void writeRecord(DatabaseEntry theKey, DatabaseEntry priorData, List<byte[]> rows) {
+		TupleOutput to = codecs.get().dataOutput;
+		to.reset();
+		recordFormat.startRecord(to, priorData, rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			to.writeFast(rows.get(i));
+			recordFormat.endRow(to, i == rows.size() - 1);
 		}
+		DatabaseEntry theData = new DatabaseEntry();
+		recordFormat.setRecord(theData, to);
+		db.put(null, theKey, theData);
+	}
 
-		TupleBinding<List<Object[]>> bind = new CacheTupleBinding();
-		List<Object[]> objsList = bind.entryToObject(theData);
-		return objsList;
+	private void deleteAppended(DatabaseEntry theKey) {
+		Cursor cursor = db.openCursor(null, null);
+		try {
+			DatabaseEntry foundKey = new DatabaseEntry(theKey.getData(), theKey.getOffset(), theKey.getSize());
+			DatabaseEntry theData = new DatabaseEntry();
+			theData.setPartial(0, 0, true);
+			OperationStatus os = cursor.getSearchKeyRange(foundKey, theData, LockMode.RMW);
+			while (os == OperationStatus.SUCCESS && isAppendedKeyOf(theKey, foundKey)) {
+				cursor.delete();
+				os = cursor.getNext(foundKey, theData, LockMode.RMW);
+			}
+		} finally {
+			cursor.close();
+		}
 	}
 
 	@Override
 	public Iterator<Map<String, Object>> iterator(Object key) {
+		checkOpen(true);
+		if (key instanceof Iterable) {
+			List<Object> keys = new ArrayList<Object>();
+			for (Object o : (Iterable<?>) key) {
+				if (o != null) {
+					keys.add(o);
+				}
+			}
+			if (keys.size() != 1) {
+				return iterator(keys);
+			}
+			key = keys.get(0);
+		}
+		long start = System.nanoTime();
+		Codec codec = codecs.get();
+		return lookup(codec, codec.encodeKey(key), start);
+	}
+
+	/**
+	 * Returns true if the primary key is an INTEGER, LONG or BIGDECIMAL_INTEGER
+	 * column, whose keys {@link #iterator(long)} looks up without boxing them.
+	 */
+	public boolean hasLongKeys() {
+		return longKeyType != null;
+	}
+
+	/**
+	 * Looks up a whole-number key like {@link #iterator(Object)}. If
+	 * {@link #hasLongKeys()}, the key is encoded straight from the long, the way
+	 * its boxed value would be; a key outside the range of an INTEGER column has
+	 * no rows. Otherwise it's looked up as a Long.
+	 */
+	public Iterator<Map<String, Object>> iterator(long key) {
+		if (longKeyType == null) {
+			return iterator((Object) key);
+		}
 		checkOpen(true);
 		long start = System.nanoTime();
+		Codec codec = codecs.get();
+		DatabaseEntry theKey = codec.encodeKey(longKeyType, key);
+		if (theKey == null) {
+			totalTimeNano.add(System.nanoTime() - start);
+			return null;
+		}
+		return lookup(codec, theKey, start);
+	}
+
+	private Iterator<Map<String, Object>> lookup(Codec codec, DatabaseEntry theKey, long start) {
 		try {
-			TupleBinding<Object> keyBind = new PrimaryKeyTupleBinding();
-			DatabaseEntry theKey = new DatabaseEntry();
-			keyBind.objectToEntry(key, theKey);
-			DatabaseEntry theData = new DatabaseEntry();
-			OperationStatus os = db.get(null, theKey, theData, LockMode.DEFAULT);
-			if (os != OperationStatus.SUCCESS) {
-				totalTimeNano += (System.nanoTime() - start);
+			loadSortedRuns();
+			if (bloomFilter != null
+					&& !bloomFilter.mightContain(theKey.getData(), theKey.getOffset(), theKey.getSize())) {
+				bloomFilterMisses.increment();
+				totalTimeNano.add(System.nanoTime() - start);
+				return null;
+			}
+			if (hotKeys != null) {
+				hotKeys.sample(theKey.getData(), theKey.getOffset(), theKey.getSize());
+			}
+			List<Map<String, Object>> returnDataList;
+			if (rowCache != null) {
+				returnDataList = new ArrayList<Map<String, Object>>(2);
+				if (rowCache.get(theKey.getData(), theKey.getOffset(), theKey.getSize(), returnDataList)) {
+					totalTimeNano.add(System.nanoTime() - start);
+					return returnDataList.isEmpty() ? null : returnDataList.iterator();
+				}
+			}
+			if (appendDuplicates) {
+				returnDataList = getAppended(theKey);
+			} else {
+				DatabaseEntry theData = codec.dataEntry;
+				OperationStatus os = db.get(null, theKey, theData, LockMode.DEFAULT);
+				returnDataList = os == OperationStatus.SUCCESS ? parseData(theKey, theData) : null;
+			}
+			if (rowCache != null) {
+				rowCache.put(theKey.getData(), theKey.getOffset(), theKey.getSize(), returnDataList);
+			}
+			totalTimeNano.add(System.nanoTime() - start);
+			if (returnDataList == null) {
 				return null;
 			}
-			List<Map<String, Object>> returnDataList = parseData(theKey, theData);
-			totalTimeNano += (System.nanoTime() - start);
 			return returnDataList.iterator();
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	@Override
-	public Iterator<Map<String, Object>> iterator() {
-		return new BerkleyBackedCacheIterator();
-	}
-
-	private int getColumnIndex(String name) {
-		for (int i = 0; i < columns.length; i++) {
-			if (name.equalsIgnoreCase(columns[i])) {
-				return i;
+	/**
+	 * Returns the rows of all "keys", in the order of the keys, or null if there
+	 * are none. The keys are looked up in encoded key order in one cursor
+	 * sweep; a key that occurs more than once gets its rows again.
+	 */
+	private Iterator<Map<String, Object>> iterator(List<Object> keys) {
+		if (keys.isEmpty()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			loadSortedRuns();
+			final byte[][] encoded = new byte[keys.size()][];
+			Integer[] order = new Integer[keys.size()];
+			for (int i = 0; i < encoded.length; i++) {
+				encoded[i] = toBytes(codecs.get().encodeKey(keys.get(i)));
+				order[i] = i;
+				if (hotKeys != null) {
+					hotKeys.sample(encoded[i], 0, encoded[i].length);
+				}
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return BerkleyRunFileSorter.compareKeys(encoded[i1], encoded[i2]);
+				}
+			});
+			List<List<Map<String, Object>>> found = new ArrayList<List<Map<String, Object>>>(
+					Collections.<List<Map<String, Object>>>nCopies(encoded.length, null));
+			KeyOrderedLookup sweep = new KeyOrderedLookup(false);
+			try {
+				List<Map<String, Object>> prior = null;
+				for (int i = 0; i < order.length; i++) {
+					int idx = order[i];
+					if (i > 0 && BerkleyRunFileSorter.compareKeys(encoded[order[i - 1]], encoded[idx]) == 0) {
+						if (prior != null) {
+							// callers may modify rows, so a repeated key gets rows of its own
+							List<Map<String, Object>> copies = new ArrayList<Map<String, Object>>(prior.size());
+							for (Map<String, Object> row : prior) {
+								copies.add(((BerkleyLazyRowMap) row).copy());
+							}
+							found.set(idx, copies);
+						}
+					} else {
+						prior = sweep.lookupEncoded(encoded[idx]);
+						found.set(idx, prior);
+					}
+				}
+			} finally {
+				sweep.close();
+			}
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+			for (List<Map<String, Object>> keyRows : found) {
+				if (keyRows != null) {
+					rows.addAll(keyRows);
+				}
 			}
+			totalTimeNano.add(System.nanoTime() - start);
+			return rows.isEmpty() ? null : rows.iterator();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
-		return -1;
 	}
 
-	private void writeObj(DIHCacheTypes type, Object o, TupleOutput to, boolean allowNulls) {
+	@Override
+	public Iterator<Map<String, Object>> iterator() {
+		checkOpen(true);
+		loadSortedRuns();
+		return new BerkleyBackedCacheIterator(null, null);
+	}
+
+	/**
+	 * Iterates the rows of the keys from "fromKey" (inclusive) to "toKey"
+	 * (exclusive) in key order, with a cursor that starts at "fromKey"; a null
+	 * bound is the start or end of the cache. The cache's keys must sort like
+	 * their values, which those of caches with key format 2 always do (see
+	 * {@link #BERKLEY_KEY_FORMAT}); with key format 1, FLOAT, DOUBLE and
+	 * BIGDECIMAL keys don't.
+	 */
+	public Iterator<Map<String, Object>> rangeIterator(Object fromKey, Object toKey) {
+		checkOpen(true);
+		if (types == null) {
+			return Collections.<Map<String, Object>>emptyList().iterator();
+		}
+		DIHCacheTypes pkType = types[pkColumnIndex];
+		if (!orderedKeys && (pkType == DIHCacheTypes.FLOAT || pkType == DIHCacheTypes.DOUBLE
+				|| pkType == DIHCacheTypes.BIGDECIMAL)) {
+			throw new IllegalStateException("The " + pkType + " keys of cache " + cacheName
+					+ " don't sort like their values, rebuild it with " + BERKLEY_KEY_FORMAT + " "
+					+ KEY_FORMAT_ORDERED + " for range scans.");
+		}
+		loadSortedRuns();
+		Codec codec = codecs.get();
+		byte[] from = fromKey == null ? null : toBytes(codec.encodeKey(fromKey));
+		byte[] to = toKey == null ? null : toBytes(codec.encodeKey(toKey));
+		return new BerkleyBackedCacheIterator(from, to);
+	}
+
+	/**
+	 * Iterates range number "split" (from 0) of "splits" contiguous key ranges
+	 * of about the same number of records, each with a cursor of its own.
+	 * Together the ranges hold every row exactly once, and all rows of a key
+	 * are in the same range, so "splits" threads (or DIH handlers, which may
+	 * each open the cache) can scan the cache in parallel. The ranges only
+	 * depend on the data, so every cache instance opened on it computes the
+	 * same ones.
+	 */
+	public Iterator<Map<String, Object>> iterator(int split, int splits) {
+		checkOpen(true);
+		if (split < 0 || split >= splits) {
+			throw new IllegalArgumentException("Split " + split + " of " + splits);
+		}
+		loadSortedRuns();
+		byte[][] bounds = computeSplitBounds(splits);
+		if (split >= bounds.length - 1) {
+			// fewer records than splits
+			return Collections.<Map<String, Object>>emptyList().iterator();
+		}
+		return new BerkleyBackedCacheIterator(bounds[split], bounds[split + 1]);
+	}
+
+	/**
+	 * Returns a Spliterator over all rows, for parallel streams. It splits
+	 * into up to four key ranges per available processor (see
+	 * {@link #iterator(int, int)}); each range is read with a cursor of its
+	 * own.
+	 */
+	public Spliterator<Map<String, Object>> spliterator() {
+		checkOpen(true);
+		loadSortedRuns();
+		byte[][] bounds = computeSplitBounds(4 * Runtime.getRuntime().availableProcessors());
+		return new KeyRangeSpliterator(bounds, 0, bounds.length - 1, db.count());
+	}
+
+	/**
+	 * Splits the key space into at most "splits" ranges of about the same
+	 * number of records. Returns the range bounds: range i starts at bounds[i]
+	 * (inclusive) and ends at bounds[i + 1] (exclusive), where null is the
+	 * start or end of the database.
+	 * <p>
+	 * The bounds are found with "skipNext", which counts records in the B-tree
+	 * bottom internal nodes without reading them. In append storage a bound is
+	 * cut back to the primary key, so the rows of a key stay in one range.
+	 */
+	private byte[][] computeSplitBounds(int splits) {
+		List<byte[]> bounds = new ArrayList<byte[]>();
+		bounds.add(null);
+		long count = splits > 1 ? db.count() : 0;
+		if (count > 0) {
+			Cursor cursor = db.openCursor(null, null);
+			try {
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry noData = new DatabaseEntry();
+				noData.setPartial(0, 0, true);
+				if (cursor.getFirst(key, noData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+					long position = 0;
+					byte[] last = toBytes(key);
+					for (int i = 1; i < splits; i++) {
+						long target = i * count / splits;
+						if (target <= position) {
+							continue;
+						}
+						long skipped = cursor.skipNext(target - position, key, noData, LockMode.READ_UNCOMMITTED);
+						position += skipped;
+						if (position < target) {
+							break;
+						}
+						int size = appendDuplicates ? key.getSize() - SEQUENCE_LENGTH : key.getSize();
+						if (compareKeyPrefix(key.getData(), key.getOffset(), size, last) > 0) {
+							last = new byte[size];
+							System.arraycopy(key.getData(), key.getOffset(), last, 0, size);
+							bounds.add(last);
+						}
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		bounds.add(null);
+		return bounds.toArray(new byte[bounds.size()][]);
+	}
+
+	private int getColumnIndex(String name) {
+		Integer i = columnIndexes.get(name);
+		if (i == null) {
+			i = columnIndexesIgnoreCase.get(name.toLowerCase(Locale.ROOT));
+		}
+		return i == null ? -1 : i;
+	}
+
+	private void writeObj(DIHCacheTypes type, Object o, TupleOutput to, boolean allowNulls) {
 		boolean isNull = (o == null);
 		if (isNull && !allowNulls) {
 			throw new RuntimeException(
@@ -728,19 +2227,7 @@ public class BerkleyBackedCache implements DIHCache {
 					to.writeInt(bdint);
 					break;
 				case CLOB:
-					try {
-						Clob cl = (Clob) o;
-						StringBuilder sb = new StringBuilder();
-						Reader in = cl.getCharacterStream();
-						char[] cbuf = new char[1024];
-						int numGot = -1;
-						while ((numGot = in.read(cbuf)) != -1) {
-							sb.append(String.valueOf(cbuf, 0, numGot));
-						}
-						to.writeString(sb.toString());
-					} catch (Exception e) {
-						throw new RuntimeException(e);
-					}
+					to.writeString(clobToString((Clob) o));
 					break;
 				case NULL:
 					break;
@@ -751,6 +2238,21 @@ public class BerkleyBackedCache implements DIHCache {
 		}
 	}
 
+	private static String clobToString(Clob cl) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			Reader in = cl.getCharacterStream();
+			char[] cbuf = new char[1024];
+			int numGot = -1;
+			while ((numGot = in.read(cbuf)) != -1) {
+				sb.append(String.valueOf(cbuf, 0, numGot));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private Object readObj(DIHCacheTypes type, TupleInput ti, boolean allowNulls) {
 		Object returnObj = null;
 		if (allowNulls && type != DIHCacheTypes.NULL) {
@@ -818,6 +2320,46 @@ public class BerkleyBackedCache implements DIHCache {
 		return returnObj;
 	}
 
+	/**
+	 * Skips a value written by {@link #writeObj} with nulls allowed.
+	 *
+	 * @return true if the value was null
+	 */
+	private boolean skipObj(DIHCacheTypes type, TupleInput ti) {
+		if (type == DIHCacheTypes.NULL) {
+			return true;
+		}
+		if (ti.readBoolean()) {
+			return true;
+		}
+		switch (type) {
+			case BYTE:
+			case BOOLEAN:
+				ti.skipFast(1);
+				break;
+			case SHORT:
+			case CHARACTER:
+				ti.skipFast(2);
+				break;
+			case INTEGER:
+			case FLOAT:
+			case BIGDECIMAL_INTEGER:
+				ti.skipFast(4);
+				break;
+			case LONG:
+			case DOUBLE:
+			case DATE:
+				ti.skipFast(8);
+				break;
+			case BIGINTEGER:
+				ti.skipFast(ti.getBigIntegerByteLength());
+				break;
+			default:
+				ti.skipFast(ti.getStringByteLength());
+		}
+		return false;
+	}
+
 	class BerkleyBackedCacheIterator implements Iterator<Map<String, Object>> {
 		private Cursor orderedCursor = null;
 		private Transaction cursorTransaction = null;
@@ -825,15 +2367,27 @@ public class BerkleyBackedCache implements DIHCache {
 		private Iterator<Map<String, Object>> currentKeysIterator = null;
 		private Map<String, Object> next = null;
 		private boolean closed = false;
-
-		public BerkleyBackedCacheIterator() {
-
+		private final DatabaseEntry theKey = new DatabaseEntry();
+		private final DatabaseEntry theData = new DatabaseEntry();
+
+		private final byte[] fromKey;
+		private final byte[] toKey;
+
+		/**
+		 * Iterates the keys from "fromKey" (inclusive) to "toKey" (exclusive);
+		 * null bounds are the start and end of the database.
+		 */
+		BerkleyBackedCacheIterator(byte[] fromKey, byte[] toKey) {
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			iterators.add(this);
 		}
 
 		private void close() {
 			if (closed) {
 				return;
 			}
+			iterators.remove(this);
 			if (orderedCursor != null) {
 				try {
 					orderedCursor.close();
@@ -866,6 +2420,7 @@ public class BerkleyBackedCache implements DIHCache {
 				return true;
 			}
 
+			boolean positioned = true;
 			if (orderedCursor == null) {
 				if (transactional) {
 					cursorTransaction = env.beginTransaction(null, null);
@@ -873,6 +2428,7 @@ public class BerkleyBackedCache implements DIHCache {
 					cursorTransaction = null;
 				}
 				orderedCursor = db.openCursor(cursorTransaction, null);
+				positioned = false;
 			}
 
 			long start = System.nanoTime();
@@ -884,13 +2440,20 @@ public class BerkleyBackedCache implements DIHCache {
 				} else {
 					OperationStatus retVal = null;
 					if (retVal == null || retVal == OperationStatus.SUCCESS) {
-						DatabaseEntry theKey = new DatabaseEntry();
-						DatabaseEntry theData = new DatabaseEntry();
-						retVal = orderedCursor.getNext(theKey, theData, LockMode.DEFAULT);
+						if (!positioned && fromKey != null) {
+							theKey.setData(fromKey);
+							retVal = orderedCursor.getSearchKeyRange(theKey, theData, LockMode.DEFAULT);
+						} else {
+							retVal = orderedCursor.getNext(theKey, theData, LockMode.DEFAULT);
+						}
+						if (retVal == OperationStatus.SUCCESS && toKey != null
+								&& compareKeyPrefix(theKey.getData(), theKey.getOffset(), theKey.getSize(), toKey) >= 0) {
+							retVal = OperationStatus.NOTFOUND;
+						}
 						if (retVal == OperationStatus.SUCCESS) {
 							currentKeysData = parseData(theKey, theData);
 							currentKeysIterator = currentKeysData.iterator();
-							totalTimeNano += (System.nanoTime() - start);
+							totalTimeNano.add(System.nanoTime() - start);
 							next = currentKeysIterator.next();
 							return true;
 						}
@@ -932,6 +2495,265 @@ public class BerkleyBackedCache implements DIHCache {
 		}
 	}
 
+	/**
+	 * Splits the key ranges of {@link #spliterator()} between threads. A
+	 * spliterator holding a single range doesn't split further.
+	 */
+	private class KeyRangeSpliterator implements Spliterator<Map<String, Object>> {
+		private final byte[][] bounds;
+		private final long totalRecords;
+		private int range;
+		private final int endRange;
+		private Iterator<Map<String, Object>> current = null;
+
+		KeyRangeSpliterator(byte[][] bounds, int range, int endRange, long totalRecords) {
+			this.bounds = bounds;
+			this.range = range;
+			this.endRange = endRange;
+			this.totalRecords = totalRecords;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map<String, Object>> action) {
+			while (range < endRange) {
+				if (current == null) {
+					current = new BerkleyBackedCacheIterator(bounds[range], bounds[range + 1]);
+				}
+				if (current.hasNext()) {
+					action.accept(current.next());
+					return true;
+				}
+				current = null;
+				range++;
+			}
+			return false;
+		}
+
+		@Override
+		public Spliterator<Map<String, Object>> trySplit() {
+			int first = current == null ? range : range + 1;
+			if (endRange - first < 2) {
+				return null;
+			}
+			int mid = (first + endRange) >>> 1;
+			KeyRangeSpliterator prefix = new KeyRangeSpliterator(bounds, range, mid, totalRecords);
+			prefix.current = current;
+			current = null;
+			range = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return totalRecords * (endRange - range) / (bounds.length - 1);
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+
+	/**
+	 * Looks up keys that arrive in ascending key order (such as the join keys of
+	 * a parent entity whose query is ordered by them) with a single cursor that
+	 * only moves forward, so a whole join is one sequential pass over the
+	 * database instead of a B-tree search per key.
+	 * <p>
+	 * The cursor steps forward with "getNext" when the next key is close by and
+	 * re-positions with "getSearchKeyRange" otherwise. A key that is not greater
+	 * than the one before costs a search, like a regular lookup, and the pass
+	 * continues from there. Order is that of the encoded keys, which with key
+	 * format 1 differs from the natural order for some key types (see
+	 * {@link BerkleyBackedCache#BERKLEY_KEY_FORMAT}).
+	 */
+	class KeyOrderedLookup {
+		/**
+		 * Max # of "getNext" steps tried before re-positioning with a search. The
+		 * actual limit starts at 1 and adapts: it doubles whenever stepping
+		 * reached the key and halves whenever it didn't, so sparse keys go
+		 * (almost) straight to searching.
+		 */
+		private static final int MAX_STEPS = 16;
+
+		private Cursor cursor = null;
+		private Transaction cursorTransaction = null;
+		private final DatabaseEntry foundKey = new DatabaseEntry();
+		private final DatabaseEntry noData = new DatabaseEntry();
+		private final DatabaseEntry foundData = new DatabaseEntry();
+		private boolean positioned = false;
+		private boolean atEnd = false;
+		private int maxSteps = 1;
+		private byte[] lastKey = null;
+		private long lookups = 0;
+		private long steps = 0;
+		private long searches = 0;
+		private long outOfOrder = 0;
+		private final boolean logStats;
+		private boolean closed = false;
+
+		KeyOrderedLookup(boolean logStats) {
+			this.logStats = logStats;
+		}
+
+		/**
+		 * Returns the rows of "key", or null if there are none.
+		 */
+		Iterator<Map<String, Object>> lookup(Object key) {
+			checkOpen(true);
+			if (closed) {
+				throw new IllegalStateException("The key-ordered lookup of cache " + cacheName + " is closed.");
+			}
+			long start = System.nanoTime();
+			return lookup(codecs.get().encodeKey(key), start);
+		}
+
+		/**
+		 * Returns the rows of a whole-number "key", encoded like
+		 * {@link BerkleyBackedCache#iterator(long)} does, or null if there are none.
+		 */
+		Iterator<Map<String, Object>> lookup(long key) {
+			if (longKeyType == null) {
+				return lookup((Object) key);
+			}
+			checkOpen(true);
+			if (closed) {
+				throw new IllegalStateException("The key-ordered lookup of cache " + cacheName + " is closed.");
+			}
+			long start = System.nanoTime();
+			DatabaseEntry theKey = codecs.get().encodeKey(longKeyType, key);
+			if (theKey == null) {
+				totalTimeNano.add(System.nanoTime() - start);
+				return null;
+			}
+			return lookup(theKey, start);
+		}
+
+		private Iterator<Map<String, Object>> lookup(DatabaseEntry theKey, long start) {
+			try {
+				loadSortedRuns();
+				List<Map<String, Object>> rows = lookupEncoded(toBytes(theKey));
+				totalTimeNano.add(System.nanoTime() - start);
+				return rows == null ? null : rows.iterator();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Returns the rows of the encoded key "target", or null if there are none.
+		 */
+		List<Map<String, Object>> lookupEncoded(byte[] target) throws Exception {
+			if (lastKey != null && compareKeyPrefix(lastKey, 0, lastKey.length, target) >= 0) {
+				// the cursor can't go back: search for the key, and continue from there
+				reset();
+				outOfOrder++;
+			}
+			lastKey = target;
+			lookups++;
+			if (bloomFilter != null && !bloomFilter.mightContain(target, 0, target.length)) {
+				bloomFilterMisses.increment();
+				return null;
+			}
+			if (cursor == null) {
+				if (transactional) {
+					cursorTransaction = env.beginTransaction(null, null);
+				}
+				cursor = db.openCursor(cursorTransaction, null);
+				// keys are compared first, data is only read for matching keys
+				noData.setPartial(0, 0, true);
+			}
+			int cmp = positioned ? compareFound(target) : (atEnd ? 1 : -1);
+			if (positioned && cmp < 0) {
+				for (int i = 0; positioned && cmp < 0 && i < maxSteps; i++) {
+					next();
+					steps++;
+					cmp = positioned ? compareFound(target) : 1;
+				}
+				maxSteps = cmp < 0 ? Math.max(1, maxSteps / 2) : Math.min(MAX_STEPS, maxSteps * 2);
+			}
+			if (cmp < 0) {
+				// a range search leaves the cursor on the next key after a miss, so
+				// the following lookups can step forward from there
+				foundKey.setData(target);
+				searches++;
+				positioned = cursor.getSearchKeyRange(foundKey, noData, LockMode.DEFAULT) == OperationStatus.SUCCESS;
+				atEnd = !positioned;
+				cmp = positioned ? compareFound(target) : 1;
+			}
+			List<Map<String, Object>> rows = null;
+			if (cmp == 0) {
+				rows = new ArrayList<Map<String, Object>>(2);
+				if (appendDuplicates) {
+					// every row is its own record: collect them, stopping at the next key
+					while (positioned && compareFound(target) == 0) {
+						parseCurrent(rows);
+						next();
+						steps++;
+					}
+				} else {
+					parseCurrent(rows);
+				}
+			}
+			return rows;
+		}
+
+		private void next() {
+			positioned = cursor.getNext(foundKey, noData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS;
+			atEnd = !positioned;
+		}
+
+		private void parseCurrent(List<Map<String, Object>> rows) throws Exception {
+			if (cursor.getCurrent(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+				parseData(foundKey, foundData, rows);
+			}
+		}
+
+		/**
+		 * Forgets the cursor position, so the next lookup searches again. Called
+		 * when the cache is modified.
+		 */
+		void reset() {
+			positioned = false;
+			atEnd = false;
+		}
+
+		/**
+		 * Compares the primary key of the record the cursor is on with "target".
+		 */
+		private int compareFound(byte[] target) {
+			int size = foundKey.getSize() - (appendDuplicates ? SEQUENCE_LENGTH : 0);
+			return compareKeyPrefix(foundKey.getData(), foundKey.getOffset(), size, target);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (cursor != null) {
+				try {
+					cursor.close();
+				} catch (Exception e) {
+					LOG.warn("couldn't close cursor for key-ordered lookup: " + cacheName);
+				}
+				if (cursorTransaction != null) {
+					try {
+						cursorTransaction.commit();
+					} catch (Exception e) {
+						LOG.warn("couldn't close transaction for key-ordered lookup: " + cacheName);
+					}
+				}
+				cursor = null;
+				cursorTransaction = null;
+			}
+			if (logStats && lookups > 0) {
+				LOG.info("Key-ordered lookups of cache: " + cacheName + ": " + lookups + " lookups, "
+						+ outOfOrder + " out of order, " + steps + " cursor steps, " + searches + " searches");
+			}
+		}
+	}
+
 	class HeaderTupleBinding extends TupleBinding<String[]> {
 
 		@Override
@@ -957,84 +2779,580 @@ public class BerkleyBackedCache implements DIHCache {
 
 	}
 
-	class CacheTupleBinding extends TupleBinding<List<Object[]>> {
+	/**
+	 * How the rows of one key are laid out in a database record. A row holds
+	 * every column but the primary key, in column order. Records are built with
+	 * {@link #startRecord}, then {@link #writeRow} / {@link #endRow} for each
+	 * new row.
+	 */
+	abstract class RecordFormat {
+
+		/**
+		 * Writes the framing of a record with "newRows" rows appended to the rows
+		 * of "prior" (a stored record of this format, or null), and copies the
+		 * prior rows without decoding them.
+		 */
+		abstract void startRecord(TupleOutput to, DatabaseEntry prior, int newRows);
+
+		abstract void writeRow(Object[] objs, TupleOutput to);
+
+		abstract void endRow(TupleOutput to, boolean last);
+
+		/**
+		 * Points "entry" at the record built in "to", in the form it is stored.
+		 */
+		void setRecord(DatabaseEntry entry, TupleOutput to) {
+			entry.setData(to.getBufferBytes(), 0, to.getBufferLength());
+		}
+
+		/**
+		 * Returns the stored record "entry" in the form written by
+		 * {@link #startRecord} and {@link #writeRow}.
+		 */
+		DatabaseEntry openRecord(DatabaseEntry entry) {
+			return entry;
+		}
+
+		/**
+		 * Adds a lazily decoded row map for every row of the record to "mapList".
+		 */
+		abstract void readRows(TupleInput ti, byte[] buf, Object keyObj, List<Map<String, Object>> mapList);
+
+		abstract Object readColumn(int slot, TupleInput ti, int offset);
+	}
+
+	/**
+	 * Format version 1: each row is followed by a "more rows follow" flag; each
+	 * column is written as a 2-byte value count followed by the values, each
+	 * with a null flag.
+	 */
+	class LegacyRecordFormat extends RecordFormat {
+
+		@Override
+		void startRecord(TupleOutput to, DatabaseEntry prior, int newRows) {
+			if (prior != null) {
+				// the prior list's "no more rows" flag is switched to "more rows follow"
+				to.writeFast(prior.getData(), prior.getOffset(), prior.getSize());
+				to.getBufferBytes()[to.getBufferLength() - 1] = 1;
+			}
+		}
+
+		@Override
+		void endRow(TupleOutput to, boolean last) {
+			to.writeBoolean(!last);
+		}
+
+		@Override
+		void readRows(TupleInput ti, byte[] buf, Object keyObj, List<Map<String, Object>> mapList) {
+			do {
+				int[] offsets = new int[dataTypes.length];
+				scanRow(ti, offsets);
+				mapList.add(new BerkleyLazyRowMap(BerkleyBackedCache.this, pkColumn, keyObj, dataColumns,
+						dataSlotsByName, buf, offsets));
+			} while (ti.readBoolean());
+		}
+
+		/**
+		 * Records where each column of the row starts, without decoding it. The
+		 * offset of a column that reads as null is set to -1.
+		 */
+		private void scanRow(TupleInput ti, int[] offsets) {
+			for (int k = 0; k < dataTypes.length; k++) {
+				int offset = ti.getBufferOffset();
+				int size = ti.readShort();
+				boolean isNull = size == 1;
+				for (int j = 0; j < size; j++) {
+					isNull &= skipObj(dataTypes[k], ti);
+				}
+				offsets[k] = isNull ? BerkleyLazyRowMap.NULL_COLUMN : offset;
+			}
+		}
+
 		@SuppressWarnings("unchecked")
 		@Override
-		public List<Object[]> entryToObject(TupleInput ti) {
-			List<Object[]> objsList = new ArrayList<Object[]>(2);
-			while (true) {
-				Object o[] = new Object[types.length - 1];
-				int k = 0;
-				for (int i = 0; i < types.length; i++) {
-					if (!columns[i].equals(pkColumn)) {
-						int size = ti.readShort();
-						if (size == 1) {
-							o[k] = readObj(types[i], ti, true);
-						} else {
-							List theList = new ArrayList(size);
-							o[k] = theList;
-							for (int j = 0; j < size; j++) {
-								theList.add(readObj(types[i], ti, true));
-							}
+		Object readColumn(int slot, TupleInput ti, int offset) {
+			DIHCacheTypes type = dataTypes[slot];
+			int size = ti.readShort();
+			if (size == 1) {
+				return readObj(type, ti, true);
+			}
+			List<Object> theList = new ArrayList<Object>(size);
+			for (int j = 0; j < size; j++) {
+				theList.add(readObj(type, ti, true));
+			}
+			return theList;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		void writeRow(Object[] objs, TupleOutput to) {
+			for (int j = 0; j < dataTypes.length; j++) {
+				if (objs[j] instanceof List) {
+					int size = ((List) objs[j]).size();
+					if (size > Short.MAX_VALUE) {
+						LOG.warn("Cannot store all the values.  Max is: "
+								+ Short.MAX_VALUE);
+						List temp = new ArrayList(Short.MAX_VALUE);
+						for (int jj = 0; jj < Short.MAX_VALUE; jj++) {
+							temp.add(((List) objs[j]).get(jj));
 						}
-						k++;
+						objs[j] = temp;
+						size = Short.MAX_VALUE;
+					}
+					to.writeShort(size);
+					for (Object o : (List) objs[j]) {
+						writeObj(dataTypes[j], o, to, true);
 					}
+				} else {
+					to.writeShort(1);
+					writeObj(dataTypes[j], objs[j], to, true);
 				}
-				objsList.add(o);
-				if (!ti.readBoolean()) {
-					break;
+			}
+		}
+	}
+
+	/**
+	 * Format version 2. A record is a flags byte and a varint row count,
+	 * followed by the rows. Each row starts with a 2-bit state per column (null,
+	 * single value, multiple values); single values are written without a count
+	 * or null flag. Multiple values are a varint count, a null bitmap and the
+	 * non-null values. Integers and dates are zigzag varints, strings are a
+	 * varint byte length plus UTF-8, BigDecimals are a varint scale plus the
+	 * unscaled value. In caches with string dictionaries, a STRING value is
+	 * prefixed by a varint: 0 if the string follows, otherwise its
+	 * {@link BerkleyStringDictionary} code + 1.
+	 * <p>
+	 * The offsets handed to {@link BerkleyLazyRowMap} point at the value of a
+	 * single-valued column; a multi-valued column at offset "o" is recorded as
+	 * "-o - 2", so it can't be mistaken for {@link BerkleyLazyRowMap#NULL_COLUMN}.
+	 */
+	class CompactRecordFormat extends RecordFormat {
+		private static final int STATE_NULL = 0;
+		private static final int STATE_SINGLE = 1;
+		private static final int STATE_MULTI = 2;
+		private static final int FLAG_DEFLATED = 1;
+
+		@Override
+		void startRecord(TupleOutput to, DatabaseEntry prior, int newRows) {
+			if (prior == null) {
+				to.writeFast(0);
+				writeVarLong(to, newRows);
+				return;
+			}
+			TupleInput ti = codecs.get().input(openRecord(prior));
+			int flags = ti.readFast();
+			long priorRows = readVarLong(ti);
+			to.writeFast(flags);
+			writeVarLong(to, priorRows + newRows);
+			to.writeFast(ti.getBufferBytes(), ti.getBufferOffset(), ti.available());
+		}
+
+		@Override
+		void endRow(TupleOutput to, boolean last) {
+		}
+
+		/**
+		 * A record above the compression threshold is stored as the flags byte
+		 * with {@link #FLAG_DEFLATED} set, the varint length of the rest of the
+		 * record, and the deflated rest of the record. It stays uncompressed if
+		 * that doesn't make it smaller.
+		 */
+		@Override
+		void setRecord(DatabaseEntry entry, TupleOutput to) {
+			int length = to.getBufferLength();
+			if (compressionThreshold < 0 || length <= compressionThreshold) {
+				super.setRecord(entry, to);
+				return;
+			}
+			byte[] buf = to.getBufferBytes();
+			Codec codec = codecs.get();
+			Deflater deflater = codec.deflater();
+			deflater.setInput(buf, 1, length - 1);
+			deflater.finish();
+			TupleOutput out = codec.compressOutput;
+			out.reset();
+			out.writeFast(buf[0] | FLAG_DEFLATED);
+			writeVarLong(out, length - 1);
+			byte[] chunk = codec.compressChunk;
+			while (!deflater.finished()) {
+				out.writeFast(chunk, 0, deflater.deflate(chunk));
+			}
+			deflater.reset();
+			if (out.getBufferLength() < length) {
+				entry.setData(out.getBufferBytes(), 0, out.getBufferLength());
+				compressedRecords.increment();
+				compressedBytesIn.add(length);
+				compressedBytesOut.add(out.getBufferLength());
+			} else {
+				super.setRecord(entry, to);
+			}
+		}
+
+		@Override
+		DatabaseEntry openRecord(DatabaseEntry entry) {
+			int flags = entry.getData()[entry.getOffset()];
+			if ((flags & FLAG_DEFLATED) == 0) {
+				return entry;
+			}
+			Codec codec = codecs.get();
+			TupleInput ti = codec.input(entry);
+			ti.readFast();
+			int length = (int) readVarLong(ti);
+			// a new array: lazily decoded rows keep a reference to it
+			byte[] plain = new byte[length + 1];
+			plain[0] = (byte) (flags & ~FLAG_DEFLATED);
+			Inflater inflater = codec.inflater();
+			inflater.setInput(ti.getBufferBytes(), ti.getBufferOffset(), ti.available());
+			try {
+				int off = 1;
+				while (off < plain.length) {
+					int n = inflater.inflate(plain, off, plain.length - off);
+					if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new IllegalStateException("Truncated compressed record in cache: " + cacheName);
+					}
+					off += n;
 				}
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Corrupt compressed record in cache: " + cacheName, e);
+			} finally {
+				inflater.reset();
 			}
-			return objsList;
+			return new DatabaseEntry(plain);
 		}
 
-		@SuppressWarnings("unchecked")
 		@Override
-		public void objectToEntry(List<Object[]> objsList, TupleOutput to) {
-			for (int h = 0; h < objsList.size(); h++) {
-				Object[] objs = objsList.get(h);
-				for (int i = 0; i < types.length; i++) {
-					if (!columns[i].equals(pkColumn)) {
-						int j = i;
-						if (i > pkColumnIndex) {
-							j--;
+		void readRows(TupleInput ti, byte[] buf, Object keyObj, List<Map<String, Object>> mapList) {
+			ti.readFast();
+			long rows = readVarLong(ti);
+			for (long r = 0; r < rows; r++) {
+				int[] offsets = new int[dataTypes.length];
+				scanRow(ti, offsets);
+				mapList.add(new BerkleyLazyRowMap(BerkleyBackedCache.this, pkColumn, keyObj, dataColumns,
+						dataSlotsByName, buf, offsets));
+			}
+		}
+
+		private void scanRow(TupleInput ti, int[] offsets) {
+			int stateStart = ti.getBufferOffset();
+			byte[] buf = ti.getBufferBytes();
+			ti.skipFast(stateBytes(dataTypes.length));
+			for (int k = 0; k < dataTypes.length; k++) {
+				int state = (buf[stateStart + (k >> 2)] >> ((k & 3) << 1)) & 3;
+				if (state == STATE_NULL) {
+					offsets[k] = BerkleyLazyRowMap.NULL_COLUMN;
+				} else if (state == STATE_SINGLE) {
+					offsets[k] = ti.getBufferOffset();
+					skipValue(k, ti);
+				} else {
+					offsets[k] = -ti.getBufferOffset() - 2;
+					int size = (int) readVarLong(ti);
+					int nullStart = ti.getBufferOffset();
+					ti.skipFast((size + 7) >> 3);
+					for (int j = 0; j < size; j++) {
+						if ((buf[nullStart + (j >> 3)] & (1 << (j & 7))) == 0) {
+							skipValue(k, ti);
 						}
-						if (objs[j] instanceof List) {
-							int size = ((List) objs[j]).size();
-							if (size > Short.MAX_VALUE) {
-								LOG.warn("Cannot store all the values.  Max is: "
-										+ Short.MAX_VALUE);
-								List temp = new ArrayList(Short.MAX_VALUE);
-								for (int jj = 0; jj < Short.MAX_VALUE; jj++) {
-									temp.add(((List) objs[j]).get(jj));
-								}
-								objs[j] = temp;
-								size = Short.MAX_VALUE;
-							}
-							to.writeShort(size);
-							for (Object o : (List) objs[j]) {
-								writeObj(types[i], o, to, true);
-							}
+					}
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Object readColumn(int slot, TupleInput ti, int offset) {
+			if (offset >= 0) {
+				return readValue(slot, ti);
+			}
+			int size = (int) readVarLong(ti);
+			byte[] buf = ti.getBufferBytes();
+			int nullStart = ti.getBufferOffset();
+			ti.skipFast((size + 7) >> 3);
+			List<Object> theList = new ArrayList<Object>(size);
+			for (int j = 0; j < size; j++) {
+				if ((buf[nullStart + (j >> 3)] & (1 << (j & 7))) == 0) {
+					theList.add(readValue(slot, ti));
+				} else {
+					theList.add(null);
+				}
+			}
+			return theList;
+		}
+
+		@Override
+		void writeRow(Object[] objs, TupleOutput to) {
+			int stateStart = to.getBufferLength();
+			int stateBytes = stateBytes(dataTypes.length);
+			for (int i = 0; i < stateBytes; i++) {
+				to.writeFast(0);
+			}
+			for (int j = 0; j < dataTypes.length; j++) {
+				int state;
+				if (objs[j] instanceof List) {
+					state = STATE_MULTI;
+					List<?> values = (List<?>) objs[j];
+					int size = values.size();
+					writeVarLong(to, size);
+					int nullStart = to.getBufferLength();
+					for (int i = 0; i < (size + 7) >> 3; i++) {
+						to.writeFast(0);
+					}
+					int i = 0;
+					for (Object o : values) {
+						if (o == null || dataTypes[j] == DIHCacheTypes.NULL) {
+							to.getBufferBytes()[nullStart + (i >> 3)] |= 1 << (i & 7);
 						} else {
-							int size = 1;
-							to.writeShort(size);
-							writeObj(types[i], objs[j], to, true);
+							writeValue(j, o, to);
 						}
+						i++;
 					}
-				}
-				if (h == objsList.size() - 1) {
-					to.writeBoolean(false);
+				} else if (objs[j] == null || dataTypes[j] == DIHCacheTypes.NULL) {
+					state = STATE_NULL;
 				} else {
-					to.writeBoolean(true);
+					state = STATE_SINGLE;
+					writeValue(j, objs[j], to);
 				}
+				// the buffer may have been reallocated while writing values
+				to.getBufferBytes()[stateStart + (j >> 2)] |= state << ((j & 3) << 1);
+			}
+		}
+
+		private int stateBytes(int columns) {
+			return (columns * 2 + 7) >> 3;
+		}
+
+		private void writeValue(int slot, Object o, TupleOutput to) {
+			switch (dataTypes[slot]) {
+				case BYTE:
+					to.writeByte(((Byte) o).byteValue());
+					break;
+				case SHORT:
+					writeVarLong(to, zigzag(((Short) o).shortValue()));
+					break;
+				case INTEGER:
+					writeVarLong(to, zigzag(((Integer) o).intValue()));
+					break;
+				case LONG:
+					writeVarLong(to, zigzag(((Long) o).longValue()));
+					break;
+				case FLOAT:
+					to.writeFloat(((Float) o).floatValue());
+					break;
+				case DOUBLE:
+					to.writeDouble(((Double) o).doubleValue());
+					break;
+				case BOOLEAN:
+					to.writeBoolean(((Boolean) o).booleanValue());
+					break;
+				case CHARACTER:
+					writeVarLong(to, ((Character) o).charValue());
+					break;
+				case DATE:
+					writeVarLong(to, zigzag(((Date) o).getTime()));
+					break;
+				case BIGINTEGER:
+					writeBytes(to, ((BigInteger) o).toByteArray());
+					break;
+				case BIGDECIMAL:
+					BigDecimal bd = (BigDecimal) o;
+					writeVarLong(to, zigzag(bd.scale()));
+					BigInteger unscaled = bd.unscaledValue();
+					if (unscaled.bitLength() < 64) {
+						// 0 can't be a byte length, it marks the varint form
+						to.writeFast(0);
+						writeVarLong(to, zigzag(unscaled.longValue()));
+					} else {
+						writeBytes(to, unscaled.toByteArray());
+					}
+					break;
+				case BIGDECIMAL_INTEGER:
+					writeVarLong(to, zigzag(((BigDecimal) o).longValue()));
+					break;
+				case CLOB:
+					writeString(to, clobToString((Clob) o));
+					break;
+				case STRING:
+					if (dictionaries != null) {
+						// 0 is a literal, any other prefix is a dictionary code + 1
+						String s = o.toString();
+						int code = dictionaries[slot].code(s);
+						writeVarLong(to, code + 1);
+						if (code < 0) {
+							writeString(to, s);
+						}
+						break;
+					}
+					writeString(to, o.toString());
+					break;
+				default:
+					writeString(to, o.toString());
+			}
+		}
+
+		private Object readValue(int slot, TupleInput ti) {
+			switch (dataTypes[slot]) {
+				case BYTE:
+					return ti.readByte();
+				case SHORT:
+					return (short) unzigzag(readVarLong(ti));
+				case INTEGER:
+					return (int) unzigzag(readVarLong(ti));
+				case LONG:
+					return unzigzag(readVarLong(ti));
+				case FLOAT:
+					return ti.readFloat();
+				case DOUBLE:
+					return ti.readDouble();
+				case BOOLEAN:
+					return ti.readBoolean();
+				case CHARACTER:
+					return (char) readVarLong(ti);
+				case DATE:
+					return new Date(unzigzag(readVarLong(ti)));
+				case BIGINTEGER:
+					return new BigInteger(readBytes(ti));
+				case BIGDECIMAL:
+					int scale = (int) unzigzag(readVarLong(ti));
+					int len = (int) readVarLong(ti);
+					if (len == 0) {
+						return BigDecimal.valueOf(unzigzag(readVarLong(ti)), scale);
+					}
+					byte[] unscaled = new byte[len];
+					ti.readFast(unscaled);
+					return new BigDecimal(new BigInteger(unscaled), scale);
+				case BIGDECIMAL_INTEGER:
+					return new BigDecimal(unzigzag(readVarLong(ti)));
+				case CLOB:
+					try {
+						return new SerialClob(readString(ti).toCharArray());
+					} catch (SQLException e) {
+						throw new RuntimeException(e);
+					}
+				case NULL:
+					return null;
+				case STRING:
+					if (dictionaries != null) {
+						int code = (int) readVarLong(ti);
+						if (code > 0) {
+							return dictionaries[slot].value(code - 1);
+						}
+					}
+					return readString(ti);
+				default:
+					return readString(ti);
 			}
 		}
+
+		private void skipValue(int slot, TupleInput ti) {
+			switch (dataTypes[slot]) {
+				case BYTE:
+				case BOOLEAN:
+					ti.skipFast(1);
+					break;
+				case FLOAT:
+					ti.skipFast(4);
+					break;
+				case DOUBLE:
+					ti.skipFast(8);
+					break;
+				case SHORT:
+				case INTEGER:
+				case LONG:
+				case CHARACTER:
+				case DATE:
+				case BIGDECIMAL_INTEGER:
+					readVarLong(ti);
+					break;
+				case BIGDECIMAL:
+					readVarLong(ti);
+					int len = (int) readVarLong(ti);
+					if (len == 0) {
+						readVarLong(ti);
+					} else {
+						ti.skipFast(len);
+					}
+					break;
+				case NULL:
+					break;
+				case STRING:
+					if (dictionaries != null && readVarLong(ti) > 0) {
+						break;
+					}
+					ti.skipFast((int) readVarLong(ti));
+					break;
+				default:
+					ti.skipFast((int) readVarLong(ti));
+			}
+		}
+
+		private void writeString(TupleOutput to, String s) {
+			writeBytes(to, s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private String readString(TupleInput ti) {
+			int len = (int) readVarLong(ti);
+			String s = new String(ti.getBufferBytes(), ti.getBufferOffset(), len, StandardCharsets.UTF_8);
+			ti.skipFast(len);
+			return s;
+		}
+
+		private void writeBytes(TupleOutput to, byte[] bytes) {
+			writeVarLong(to, bytes.length);
+			to.writeFast(bytes);
+		}
+
+		private byte[] readBytes(TupleInput ti) {
+			byte[] bytes = new byte[(int) readVarLong(ti)];
+			ti.readFast(bytes);
+			return bytes;
+		}
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarLong(TupleOutput to, long v) {
+		while ((v & ~0x7FL) != 0) {
+			to.writeFast((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		to.writeFast((int) v);
+	}
+
+	private static long readVarLong(TupleInput ti) {
+		long v = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = ti.readFast();
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
 	}
 
 	class PrimaryKeyTupleBinding extends TupleBinding<Object> {
 		@Override
 		public Object entryToObject(TupleInput ti) {
 			DIHCacheTypes type = types[pkColumnIndex];
+			if (orderedKeys) {
+				switch (type) {
+					case FLOAT:
+						return ti.readSortedFloat();
+					case DOUBLE:
+						return ti.readSortedDouble();
+					case BIGDECIMAL:
+						// 100 is stored as 1E+2
+						BigDecimal bd = ti.readSortedBigDecimal();
+						return bd.scale() < 0 ? bd.setScale(0) : bd;
+					default:
+						break;
+				}
+			}
 			return readObj(type, ti, false);
 
 		}
@@ -1054,7 +3372,121 @@ public class BerkleyBackedCache implements DIHCache {
 
 			}
 			DIHCacheTypes type = types[pkColumnIndex];
+			if (orderedKeys && obj != null) {
+				// the other types' tuple formats sort like their values already
+				switch (type) {
+					case FLOAT:
+						to.writeSortedFloat(((Float) obj).floatValue());
+						return;
+					case DOUBLE:
+						to.writeSortedDouble(((Double) obj).doubleValue());
+						return;
+					case BIGDECIMAL:
+						to.writeSortedBigDecimal((BigDecimal) obj);
+						return;
+					default:
+						break;
+				}
+			}
 			writeObj(type, obj, to, false);
 		}
 	}
+
+	/**
+	 * A {@link TupleInput} that can be pointed at a new buffer, so decoding does
+	 * not need a new stream per record.
+	 */
+	static class ReusableTupleInput extends TupleInput {
+		ReusableTupleInput() {
+			super(new byte[0]);
+		}
+
+		void setBuffer(byte[] buffer, int offset, int length) {
+			buf = buffer;
+			off = offset;
+			mark = offset;
+			len = offset + length;
+		}
+	}
+
+	/**
+	 * Per-thread encode/decode state: growable output buffers, a resettable
+	 * input and the entries handed to JE, reused across calls.
+	 */
+	class Codec {
+		final TupleOutput keyOutput = new TupleOutput();
+		final TupleOutput dataOutput = new TupleOutput();
+		final ReusableTupleInput input = new ReusableTupleInput();
+		final DatabaseEntry keyEntry = new DatabaseEntry();
+		final DatabaseEntry dataEntry = new DatabaseEntry();
+		final byte[] longKeyBytes = new byte[8];
+		final TupleOutput compressOutput = new TupleOutput();
+		final byte[] compressChunk = new byte[8192];
+		private Object[] row = new Object[0];
+		private Deflater deflater;
+		private Inflater inflater;
+
+		DatabaseEntry encodeKey(Object key) {
+			keyOutput.reset();
+			keyBinding.objectToEntry(key, keyOutput);
+			keyEntry.setData(keyOutput.getBufferBytes(), 0, keyOutput.getBufferLength());
+			return keyEntry;
+		}
+
+		/**
+		 * Encodes "key" the way {@link #encodeKey(Object)} encodes it boxed as a
+		 * "type" (see {@link BerkleyBackedCache#hasLongKeys()}): big-endian with
+		 * the sign bit flipped, like {@link TupleOutput#writeInt} and
+		 * {@link TupleOutput#writeLong}. Returns null if an INTEGER can't hold it.
+		 */
+		DatabaseEntry encodeKey(DIHCacheTypes type, long key) {
+			int width;
+			if (type == DIHCacheTypes.LONG) {
+				key ^= Long.MIN_VALUE;
+				width = 8;
+			} else {
+				if (type == DIHCacheTypes.INTEGER && (int) key != key) {
+					return null;
+				}
+				// BigDecimal.intValue() keeps the low 32 bits, and so does the cast
+				key = ((int) key) ^ Integer.MIN_VALUE;
+				width = 4;
+			}
+			byte[] bytes = longKeyBytes;
+			for (int i = width - 1; i >= 0; i--) {
+				bytes[i] = (byte) key;
+				key >>>= 8;
+			}
+			keyEntry.setData(bytes, 0, width);
+			return keyEntry;
+		}
+
+		TupleInput input(DatabaseEntry entry) {
+			input.setBuffer(entry.getData(), entry.getOffset(), entry.getSize());
+			return input;
+		}
+
+		Deflater deflater() {
+			if (deflater == null) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+			}
+			return deflater;
+		}
+
+		Inflater inflater() {
+			if (inflater == null) {
+				inflater = new Inflater();
+			}
+			return inflater;
+		}
+
+		Object[] row(int size) {
+			if (row.length != size) {
+				row = new Object[size];
+			} else {
+				Arrays.fill(row, null);
+			}
+			return row;
+		}
+	}
 }
@@ -0,0 +1,126 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A Bloom filter over the encoded primary keys of a {@link BerkleyBackedCache},
+ * so lookups of keys that are definitely not in the cache don't have to search
+ * the database.
+ * <p>
+ * Bit positions are derived from two 64-bit hashes of the key bytes
+ * (Kirsch/Mitzenmacher double hashing).
+ */
+class BerkleyBloomFilter {
+
+	private static final int FILE_MAGIC = 0x424c4f4d;
+	private static final int FILE_VERSION = 1;
+
+	private final long[] words;
+	private final long bitCount;
+	private final int hashCount;
+
+	private BerkleyBloomFilter(long[] words, int hashCount) {
+		this.words = words;
+		this.bitCount = (long) words.length * 64;
+		this.hashCount = hashCount;
+	}
+
+	/**
+	 * Creates an empty filter sized for "expectedKeys" keys at the given false
+	 * positive rate, but using at most "maxBytes" bytes.
+	 */
+	static BerkleyBloomFilter create(long expectedKeys, double falsePositiveRate, long maxBytes) {
+		long n = Math.max(1, expectedKeys);
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+		bits = Math.max(64, Math.min(bits, maxBytes * 8));
+		int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+		int hashCount = (int) Math.max(1, Math.round((double) wordCount * 64 / n * ln2));
+		return new BerkleyBloomFilter(new long[wordCount], Math.min(hashCount, 30));
+	}
+
+	void add(byte[] key, int offset, int length) {
+		long h1 = hash(key, offset, length, 0x9E3779B97F4A7C15L);
+		long h2 = hash(key, offset, length, 0xC2B2AE3D27D4EB4FL);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			words[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	boolean mightContain(byte[] key, int offset, int length) {
+		long h1 = hash(key, offset, length, 0x9E3779B97F4A7C15L);
+		long h2 = hash(key, offset, length, 0xC2B2AE3D27D4EB4FL);
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	long getByteSize() {
+		return (long) words.length * 8;
+	}
+
+	int getHashCount() {
+		return hashCount;
+	}
+
+	private static long hash(byte[] key, int offset, int length, long seed) {
+		long h = seed ^ length;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (key[i] & 0xff)) * 0x100000001B3L;
+		}
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns the filter stored in "file", or null if there is none.
+	 */
+	static BerkleyBloomFilter load(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				throw new IOException("Not a bloom filter file: " + file);
+			}
+			int hashCount = in.readInt();
+			long[] words = new long[in.readInt()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = in.readLong();
+			}
+			return new BerkleyBloomFilter(words, hashCount);
+		} finally {
+			in.close();
+		}
+	}
+
+	void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(hashCount);
+			out.writeInt(words.length);
+			for (long word : words) {
+				out.writeLong(word);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
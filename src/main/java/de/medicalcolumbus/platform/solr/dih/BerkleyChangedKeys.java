@@ -0,0 +1,326 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The encoded keys a {@link BerkleyBackedCache} has written since it was
+ * opened, for {@link DIHCachePersistProperties#CACHE_DELTA_WITH_FULL_UPDATE_NO_CLEAN}.
+ * <p>
+ * The keys are kept in memory until their estimated heap size exceeds
+ * "maxBytes". Keys of up to 8 bytes, like those of INTEGER and LONG primary
+ * keys, are held as primitive longs in open-addressing tables, without an
+ * object per key; longer ones in a concurrent set. Then they move to a
+ * temporary database in the cache's environment, which JE evicts to disk as
+ * needed and removes when it is closed. Keys may be added and looked up by
+ * several threads at once.
+ */
+class BerkleyChangedKeys {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyChangedKeys.class);
+
+	/**
+	 * Rough heap overhead of a key in memory: map node, ByteBuffer and array
+	 * header.
+	 */
+	private static final int ENTRY_OVERHEAD = 112;
+	private static final DatabaseEntry NO_DATA = new DatabaseEntry(new byte[0]);
+
+	private final Environment env;
+	private final String name;
+	private final long maxBytes;
+	private final Set<ByteBuffer> keys = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+	private final LongSet longKeys = new LongSet();
+	/**
+	 * Keys shorter than 8 bytes, with their length in the top byte so "0x01"
+	 * and "0x0001" differ.
+	 */
+	private final LongSet shortKeys = new LongSet();
+	private final AtomicLong bytes = new AtomicLong();
+	private final LongAdder added = new LongAdder();
+	// the lookups and adds share the lock, spilling and clearing take it alone
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile Database spilled = null;
+	private long spilledAt = 0;
+
+	BerkleyChangedKeys(Environment env, String name, long maxBytes) {
+		this.env = env;
+		this.name = name;
+		this.maxBytes = maxBytes;
+	}
+
+	boolean contains(byte[] key, int offset, int length) {
+		lock.readLock().lock();
+		try {
+			Database db = spilled;
+			if (db == null) {
+				if (length == 8) {
+					return longKeys.contains(pack(key, offset, length));
+				} else if (length < 8) {
+					return shortKeys.contains(pack(key, offset, length) | (long) length << 56);
+				}
+				return keys.contains(ByteBuffer.wrap(key, offset, length));
+			}
+			DatabaseEntry data = new DatabaseEntry();
+			data.setPartial(0, 0, true);
+			return db.get(null, new DatabaseEntry(key, offset, length), data, LockMode.READ_UNCOMMITTED)
+					== OperationStatus.SUCCESS;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void add(byte[] key, int offset, int length) {
+		boolean spill;
+		lock.readLock().lock();
+		try {
+			Database db = spilled;
+			if (db != null) {
+				if (db.putNoOverwrite(null, new DatabaseEntry(key, offset, length), NO_DATA) == OperationStatus.SUCCESS) {
+					added.increment();
+				}
+				return;
+			}
+			if (length <= 8) {
+				LongSet set = length == 8 ? longKeys : shortKeys;
+				long packed = length == 8 ? pack(key, offset, length) : pack(key, offset, length) | (long) length << 56;
+				if (!set.add(packed)) {
+					return;
+				}
+				added.increment();
+				spill = bytes.get() + longKeys.bytes() + shortKeys.bytes() > maxBytes;
+			} else {
+				if (!keys.add(ByteBuffer.wrap(toArray(key, offset, length)))) {
+					return;
+				}
+				added.increment();
+				spill = bytes.addAndGet(length + ENTRY_OVERHEAD) + longKeys.bytes() + shortKeys.bytes() > maxBytes;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (spill) {
+			spill();
+		}
+	}
+
+	private void spill() {
+		lock.writeLock().lock();
+		try {
+			if (spilled != null) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			DatabaseConfig config = new DatabaseConfig();
+			config.setTemporary(true);
+			config.setAllowCreate(true);
+			Database db = env.openDatabase(null, name, config);
+			byte[][] sorted = new byte[keys.size() + longKeys.size() + shortKeys.size()][];
+			int n = 0;
+			for (ByteBuffer key : keys) {
+				sorted[n++] = key.array();
+			}
+			n = longKeys.unpackInto(sorted, n, false);
+			n = shortKeys.unpackInto(sorted, n, true);
+			// in key order, each insert goes to the end of the B-tree
+			Arrays.sort(sorted, 0, n, new Comparator<byte[]>() {
+				@Override
+				public int compare(byte[] k1, byte[] k2) {
+					return BerkleyRunFileSorter.compareKeys(k1, k2);
+				}
+			});
+			for (int i = 0; i < n; i++) {
+				db.put(null, new DatabaseEntry(sorted[i]), NO_DATA);
+			}
+			spilledAt = n;
+			keys.clear();
+			longKeys.release();
+			shortKeys.release();
+			bytes.set(0);
+			spilled = db;
+			LOG.info("Moved " + spilledAt + " changed keys to the temporary database " + name + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets all keys and removes the temporary database, if any. Clearing an
+	 * empty set takes no lock, as adds of keys arriving in order do each time.
+	 */
+	void clear() {
+		if (spilled == null && longKeys.isEmpty() && shortKeys.isEmpty() && keys.isEmpty()) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			keys.clear();
+			longKeys.clear();
+			shortKeys.clear();
+			bytes.set(0);
+			if (spilled != null) {
+				spilled.close();
+				spilled = null;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	String getStats() {
+		return added.sum() + " changed keys" + (spilledAt > 0 ? ", moved to disk after " + spilledAt : "");
+	}
+
+	private static long pack(byte[] key, int offset, int length) {
+		long packed = 0;
+		for (int i = 0; i < length; i++) {
+			packed = packed << 8 | (key[offset + i] & 0xff);
+		}
+		return packed;
+	}
+
+	private static byte[] toArray(byte[] key, int offset, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(key, offset, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * A set of longs in an open-addressing table, at most half full. 0 marks a
+	 * free slot and is tracked apart.
+	 */
+	private static final class LongSet {
+		private long[] table = new long[16];
+		private int size = 0;
+		private boolean hasZero = false;
+
+		synchronized boolean contains(long v) {
+			if (v == 0) {
+				return hasZero;
+			}
+			int mask = table.length - 1;
+			for (int i = hash(v) & mask; table[i] != 0; i = (i + 1) & mask) {
+				if (table[i] == v) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		synchronized boolean add(long v) {
+			if (v == 0) {
+				if (hasZero) {
+					return false;
+				}
+				hasZero = true;
+				size++;
+				return true;
+			}
+			if (!insert(table, v)) {
+				return false;
+			}
+			if (++size > table.length / 2) {
+				long[] grown = new long[table.length * 2];
+				for (long old : table) {
+					if (old != 0) {
+						insert(grown, old);
+					}
+				}
+				table = grown;
+			}
+			return true;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized boolean isEmpty() {
+			return size == 0;
+		}
+
+		synchronized long bytes() {
+			return 8L * table.length;
+		}
+
+		/**
+		 * Adds the keys to "keys" from index "n" on, and returns the index after
+		 * the last one.
+		 */
+		synchronized int unpackInto(byte[][] keys, int n, boolean withLength) {
+			if (hasZero) {
+				keys[n++] = unpack(0, withLength);
+			}
+			for (long v : table) {
+				if (v != 0) {
+					keys[n++] = unpack(v, withLength);
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * Empties the table in place, keeping its capacity.
+		 */
+		synchronized void clear() {
+			if (size > 0) {
+				Arrays.fill(table, 0);
+				size = 0;
+				hasZero = false;
+			}
+		}
+
+		/**
+		 * Empties the set and gives up a grown table.
+		 */
+		synchronized void release() {
+			table = new long[16];
+			size = 0;
+			hasZero = false;
+		}
+
+		private static boolean insert(long[] table, long v) {
+			int mask = table.length - 1;
+			int i = hash(v) & mask;
+			for (; table[i] != 0; i = (i + 1) & mask) {
+				if (table[i] == v) {
+					return false;
+				}
+			}
+			table[i] = v;
+			return true;
+		}
+
+		private static int hash(long v) {
+			v *= 0x9E3779B97F4A7C15L;
+			return (int) (v ^ (v >>> 32));
+		}
+
+		private static byte[] unpack(long v, boolean withLength) {
+			int length = withLength ? (int) (v >>> 56) : 8;
+			byte[] key = new byte[length];
+			for (int i = length - 1; i >= 0; i--) {
+				key[i] = (byte) v;
+				v >>>= 8;
+			}
+			return key;
+		}
+	}
+}
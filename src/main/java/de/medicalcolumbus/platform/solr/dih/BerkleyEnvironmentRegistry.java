@@ -0,0 +1,78 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sleepycat.je.EnvironmentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The shared environments of {@link BerkleyBackedCache#BERKLEY_SHARED_ENVIRONMENT}:
+ * one reference-counted {@link BerkleyEnvironment} per directory, opened by
+ * the first cache that needs it and closed when the last one releases it.
+ */
+final class BerkleyEnvironmentRegistry {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyEnvironmentRegistry.class);
+
+	private static final Map<String, Entry> environments = new HashMap<String, Entry>();
+
+	private BerkleyEnvironmentRegistry() {
+	}
+
+	/**
+	 * Returns the environment in "home", opening it with "config" if no cache
+	 * holds it yet. Every call must be matched by a {@link #release} call.
+	 */
+	static synchronized BerkleyEnvironment acquire(File home, EnvironmentConfig config) throws IOException {
+		String path = home.getCanonicalPath();
+		Entry entry = environments.get(path);
+		if (entry == null) {
+			if (!config.getReadOnly()) {
+				home.mkdirs();
+			}
+			entry = new Entry(new BerkleyEnvironment(home, config), config.getTransactional(), config.getReadOnly());
+			environments.put(path, entry);
+			LOG.info("Opened shared environment: " + path);
+		} else if (config.getTransactional() && !entry.transactional) {
+			throw new IllegalStateException("The shared environment " + path
+					+ " is not transactional, but a transactional cache was opened in it. Set "
+					+ BerkleyBackedCache.BERKLEY_TRANSACTIONAL + " alike for all caches of a base directory.");
+		} else if (!config.getReadOnly() && entry.readOnly) {
+			throw new IllegalStateException("The shared environment " + path
+					+ " is open read-only, a cache can't be written in it until all its read-only caches are closed.");
+		}
+		entry.references++;
+		return entry.env;
+	}
+
+	static synchronized void release(BerkleyEnvironment env) {
+		for (Map.Entry<String, Entry> e : environments.entrySet()) {
+			Entry entry = e.getValue();
+			if (entry.env == env) {
+				if (--entry.references == 0) {
+					environments.remove(e.getKey());
+					env.close();
+					LOG.info("Closed shared environment: " + e.getKey());
+				}
+				return;
+			}
+		}
+		throw new IllegalStateException("Not a shared environment: " + env.getHome());
+	}
+
+	private static class Entry {
+		private final BerkleyEnvironment env;
+		private final boolean transactional;
+		private final boolean readOnly;
+		private int references = 0;
+
+		Entry(BerkleyEnvironment env, boolean transactional, boolean readOnly) {
+			this.env = env;
+			this.transactional = transactional;
+			this.readOnly = readOnly;
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The generations of a cache built with {@link BerkleyBackedCache#BERKLEY_GENERATIONS}.
+ * <p>
+ * Generation N of cache "name" is the directory "name.genN" with its
+ * properties file "name.genN_cache.properties", next to where the cache
+ * would be without generations. The pointer file "name_cache.current" holds
+ * the name of the current generation and is replaced atomically, so readers
+ * see either the old or the new generation.
+ * <p>
+ * A generation that isn't current is reaped once no environment has it open:
+ * JE locks "je.lck" in every open environment directory, shared by readers
+ * and exclusively by a writer, so an exclusive lock on it means there is no
+ * reader left in any process. A generation newer than the current one may
+ * still be being built; it is only reaped once it hasn't changed for
+ * {@link #ORPHAN_AGE} ms, when it's left over from an aborted build. The
+ * directory of the cache from before it had generations is reaped like an
+ * old generation.
+ */
+final class BerkleyGenerations {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyGenerations.class);
+
+	private static final String POINTER_SUFFIX = "_cache.current";
+	private static final String PROPERTIES_SUFFIX = "_cache.properties";
+	private static final String LOCK_FILE = "je.lck";
+	static final long ORPHAN_AGE = 60L * 60 * 1000;
+
+	private BerkleyGenerations() {
+	}
+
+	/**
+	 * Returns the name of the current generation of "cacheName", or null if it
+	 * has none.
+	 */
+	static String current(File baseDir, String cacheName) throws IOException {
+		File pointer = new File(baseDir, cacheName + POINTER_SUFFIX);
+		if (!pointer.exists()) {
+			return null;
+		}
+		String generation;
+		try {
+			generation = new String(Files.readAllBytes(pointer.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (NoSuchFileException e) {
+			// just unpublished
+			return null;
+		}
+		if (generationNumber(cacheName, generation) < 0) {
+			throw new IOException("Not a generation of cache " + cacheName + " in " + pointer + ": " + generation);
+		}
+		return generation;
+	}
+
+	/**
+	 * Returns the name of a generation of "cacheName" newer than all there are.
+	 */
+	static String next(File baseDir, String cacheName) {
+		long max = 0;
+		String[] names = baseDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(PROPERTIES_SUFFIX)) {
+					name = name.substring(0, name.length() - PROPERTIES_SUFFIX.length());
+				}
+				max = Math.max(max, generationNumber(cacheName, name));
+			}
+		}
+		return cacheName + ".gen" + (max + 1);
+	}
+
+	/**
+	 * Makes "generation" the current generation of "cacheName".
+	 */
+	static void publish(File baseDir, String cacheName, String generation) throws IOException {
+		File pointer = new File(baseDir, cacheName + POINTER_SUFFIX);
+		File tmp = File.createTempFile(pointer.getName(), ".tmp", baseDir);
+		try {
+			Files.write(tmp.toPath(), generation.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), pointer.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+		LOG.info("Published generation " + generation + " of cache: " + cacheName);
+	}
+
+	static void unpublish(File baseDir, String cacheName) {
+		new File(baseDir, cacheName + POINTER_SUFFIX).delete();
+	}
+
+	static void reapInBackground(final File baseDir, final String cacheName) {
+		Thread reaper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reap(baseDir, cacheName, false);
+			}
+		}, "BerkleyGenerations-" + cacheName);
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Deletes the generations of "cacheName" that are neither current nor
+	 * open, or with "all" every one that isn't open, and returns how many.
+	 */
+	static int reap(File baseDir, String cacheName, boolean all) {
+		String current;
+		try {
+			current = all ? null : current(baseDir, cacheName);
+		} catch (IOException e) {
+			LOG.warn("Not reaping generations of cache: " + cacheName, e);
+			return 0;
+		}
+		if (current == null && !all) {
+			return 0;
+		}
+		long currentNumber = current == null ? Long.MAX_VALUE : generationNumber(cacheName, current);
+		int reaped = 0;
+		String[] names = baseDir.list();
+		if (names == null) {
+			return 0;
+		}
+		for (String name : names) {
+			long number = name.equals(cacheName) ? 0 : generationNumber(cacheName, name);
+			if (number < 0 || name.equals(current)) {
+				continue;
+			}
+			File dir = new File(baseDir, name);
+			if (!dir.isDirectory()) {
+				continue;
+			}
+			if (number > currentNumber && System.currentTimeMillis() - lastModified(dir) < ORPHAN_AGE) {
+				continue;
+			}
+			try {
+				if (deleteUnlessOpen(dir, new File(baseDir, name + PROPERTIES_SUFFIX))) {
+					reaped++;
+				}
+			} catch (IOException e) {
+				LOG.warn("Could not reap " + dir, e);
+			}
+		}
+		if (reaped > 0) {
+			LOG.info("Reaped " + reaped + " old generations of cache: " + cacheName);
+		}
+		return reaped;
+	}
+
+	/**
+	 * The properties go first: a reader that gets here late finds no cache
+	 * instead of an empty one.
+	 */
+	private static boolean deleteUnlessOpen(File dir, File propsFile) throws IOException {
+		File lockFile = new File(dir, LOCK_FILE);
+		if (lockFile.exists()) {
+			FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE);
+			try {
+				FileLock lock;
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// open in this JVM
+					return false;
+				}
+				if (lock == null) {
+					return false;
+				}
+				try {
+					propsFile.delete();
+					deleteFiles(dir, false);
+				} finally {
+					lock.release();
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		propsFile.delete();
+		deleteFiles(dir, true);
+		return true;
+	}
+
+	private static void deleteFiles(File dir, boolean withLockFile) throws IOException {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if ((withLockFile || !f.getName().equals(LOCK_FILE)) && !f.delete() && f.exists()) {
+					throw new IOException("Could not delete " + f);
+				}
+			}
+		}
+		if (withLockFile && !dir.delete() && dir.exists()) {
+			throw new IOException("Could not delete " + dir);
+		}
+	}
+
+	private static long lastModified(File dir) {
+		long last = dir.lastModified();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				last = Math.max(last, f.lastModified());
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Returns N if "name" is generation N of "cacheName", else -1.
+	 */
+	private static long generationNumber(String cacheName, String name) {
+		Matcher m = Pattern.compile(Pattern.quote(cacheName) + "\\.gen(\\d{1,18})").matcher(name);
+		return m.matches() ? Long.parseLong(m.group(1)) : -1;
+	}
+}
@@ -0,0 +1,242 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The most frequently looked-up keys of a {@link BerkleyBackedCache}, see
+ * {@link BerkleyBackedCache#BERKLEY_HOT_KEYS}.
+ * <p>
+ * One lookup in {@link #SAMPLE_RATE} is counted. Once more than four times
+ * the wanted number of keys are counted, only the top half of them is kept,
+ * so a key has to recur to stay; the counts are approximate, but the keys
+ * looked up much more often than others survive. A saved profile can be
+ * prefetched into the JE cache by a background thread, in key order.
+ */
+class BerkleyHotKeys implements Runnable {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyHotKeys.class);
+
+	private static final int FILE_MAGIC = 0x484f544b;
+	private static final int FILE_VERSION = 1;
+	static final int SAMPLE_RATE = 4;
+
+	private final int maxKeys;
+	private final Map<ByteBuffer, long[]> counts = new HashMap<ByteBuffer, long[]>();
+	private long sampled = 0;
+
+	private Database db;
+	private String cacheName;
+	private List<byte[]> prefetchKeys;
+	private boolean keyPrefixes;
+	private volatile boolean cancelled = false;
+	private Thread thread = null;
+
+	BerkleyHotKeys(int maxKeys) {
+		this.maxKeys = maxKeys;
+	}
+
+	void sample(byte[] key, int offset, int length) {
+		if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) {
+			return;
+		}
+		synchronized (this) {
+			sampled++;
+			long[] count = counts.get(ByteBuffer.wrap(key, offset, length));
+			if (count != null) {
+				count[0]++;
+				return;
+			}
+			counts.put(ByteBuffer.wrap(Arrays.copyOfRange(key, offset, offset + length)), new long[] { 1 });
+			if (counts.size() > 4 * maxKeys) {
+				List<Map.Entry<ByteBuffer, long[]>> top = sortedCounts();
+				for (Map.Entry<ByteBuffer, long[]> e : top.subList(2 * maxKeys, top.size())) {
+					counts.remove(e.getKey());
+				}
+			}
+		}
+	}
+
+	synchronized long getSampled() {
+		return sampled;
+	}
+
+	/**
+	 * The encoded keys with the highest counts, at most "maxKeys" of them.
+	 */
+	synchronized List<byte[]> top() {
+		List<Map.Entry<ByteBuffer, long[]>> sorted = sortedCounts();
+		List<byte[]> keys = new ArrayList<byte[]>(Math.min(maxKeys, sorted.size()));
+		for (Map.Entry<ByteBuffer, long[]> e : sorted.subList(0, Math.min(maxKeys, sorted.size()))) {
+			keys.add(e.getKey().array());
+		}
+		return keys;
+	}
+
+	private List<Map.Entry<ByteBuffer, long[]>> sortedCounts() {
+		List<Map.Entry<ByteBuffer, long[]>> sorted = new ArrayList<Map.Entry<ByteBuffer, long[]>>(counts.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<ByteBuffer, long[]>>() {
+			@Override
+			public int compare(Map.Entry<ByteBuffer, long[]> e1, Map.Entry<ByteBuffer, long[]> e2) {
+				return Long.compare(e2.getValue()[0], e1.getValue()[0]);
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Returns the keys stored in "file", or null if there is none.
+	 */
+	static List<byte[]> load(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				throw new IOException("Not a hot keys file: " + file);
+			}
+			int n = in.readInt();
+			List<byte[]> keys = new ArrayList<byte[]>(n);
+			for (int i = 0; i < n; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				keys.add(key);
+			}
+			return keys;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replaces "file" atomically, as other processes reading the same cache
+	 * may save theirs at the same time.
+	 */
+	static void save(File file, List<byte[]> keys) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(FILE_VERSION);
+				out.writeInt(keys.size());
+				for (byte[] key : keys) {
+					out.writeInt(key.length);
+					out.write(key);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Starts reading the records of "keys" from "db" on a thread of its own,
+	 * which faults them into the JE cache. With "keyPrefixes", the keys are
+	 * prefixes of the database's keys, and all records under each are read.
+	 */
+	void startPrefetch(Database db, String cacheName, List<byte[]> keys, boolean keyPrefixes) {
+		this.db = db;
+		this.cacheName = cacheName;
+		this.prefetchKeys = keys;
+		this.keyPrefixes = keyPrefixes;
+		thread = new Thread(this, "BerkleyHotKeys-" + cacheName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops a running prefetch and waits for it, so the database can be closed.
+	 */
+	void cancel() {
+		cancelled = true;
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		List<byte[]> keys = new ArrayList<byte[]>(prefetchKeys);
+		// in key order, neighbouring keys share their B-tree nodes
+		Collections.sort(keys, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] k1, byte[] k2) {
+				return BerkleyRunFileSorter.compareKeys(k1, k2);
+			}
+		});
+		int found = 0;
+		int done = 0;
+		Cursor cursor = null;
+		try {
+			cursor = db.openCursor(null, null);
+			DatabaseEntry theKey = new DatabaseEntry();
+			DatabaseEntry theData = new DatabaseEntry();
+			for (byte[] key : keys) {
+				if (cancelled) {
+					break;
+				}
+				done++;
+				theKey.setData(key);
+				if (!keyPrefixes) {
+					if (cursor.getSearchKey(theKey, theData, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+						found++;
+					}
+					continue;
+				}
+				OperationStatus os = cursor.getSearchKeyRange(theKey, theData, LockMode.READ_UNCOMMITTED);
+				boolean any = false;
+				while (os == OperationStatus.SUCCESS && startsWith(theKey, key) && !cancelled) {
+					any = true;
+					os = cursor.getNext(theKey, theData, LockMode.READ_UNCOMMITTED);
+				}
+				if (any) {
+					found++;
+				}
+			}
+			LOG.info("Prefetched " + found + " of " + keys.size() + " hot keys of cache: " + cacheName + " in "
+					+ (System.currentTimeMillis() - start) + " ms" + (done < keys.size() ? " (stopped by close)" : ""));
+		} catch (RuntimeException e) {
+			LOG.warn("Prefetch of the hot keys of cache: " + cacheName + " failed", e);
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	private static boolean startsWith(DatabaseEntry entry, byte[] prefix) {
+		if (entry.getSize() < prefix.length) {
+			return false;
+		}
+		byte[] data = entry.getData();
+		int offset = entry.getOffset();
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,260 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.*;
+
+/**
+ * A row returned by {@link BerkleyBackedCache} lookups, backed by the raw bytes
+ * of the stored record.
+ * <p>
+ * The offset of every column inside the record is known up front; a column is
+ * only decoded the first time it is read. The first write (put, remove, ...)
+ * decodes the remaining columns into a private {@link HashMap}, which from then
+ * on backs the row, so transformers can modify rows as usual.
+ */
+class BerkleyLazyRowMap extends AbstractMap<String, Object> {
+
+	/**
+	 * Decodes the column stored in slot "slot" of a row, starting at "offset".
+	 */
+	interface ColumnDecoder {
+		Object decodeColumn(int slot, byte[] buf, int offset);
+	}
+
+	/**
+	 * The offset of a column that is null in this row.
+	 */
+	static final int NULL_COLUMN = -1;
+
+	private final ColumnDecoder decoder;
+	private final String pkColumn;
+	private final Object key;
+	private final String[] columns;
+	private final Map<String, Integer> slots;
+	private final byte[] buf;
+	private final int[] offsets;
+	private final int presentColumns;
+	private Object[] decoded;
+	private Map<String, Object> materialized;
+
+	/**
+	 * @param columns the data column of every slot
+	 * @param slots   the slot of every data column, by name
+	 * @param offsets the offset of every slot in "buf", or {@link #NULL_COLUMN}
+	 *                if the column is null in this row
+	 */
+	BerkleyLazyRowMap(ColumnDecoder decoder, String pkColumn, Object key, String[] columns,
+					  Map<String, Integer> slots, byte[] buf, int[] offsets) {
+		this.decoder = decoder;
+		this.pkColumn = pkColumn;
+		this.key = key;
+		this.columns = columns;
+		this.slots = slots;
+		this.buf = buf;
+		this.offsets = offsets;
+		int present = 0;
+		for (int offset : offsets) {
+			if (offset != NULL_COLUMN) {
+				present++;
+			}
+		}
+		this.presentColumns = present;
+	}
+
+	/**
+	 * Returns a new row over the same record, as it was before any column was
+	 * decoded or modified.
+	 */
+	BerkleyLazyRowMap copy() {
+		return new BerkleyLazyRowMap(decoder, pkColumn, key, columns, slots, buf, offsets);
+	}
+
+	/**
+	 * Returns the stored record this row is read from. Rows of the same key
+	 * may share it.
+	 */
+	byte[] getRecord() {
+		return buf;
+	}
+
+	int getColumnCount() {
+		return offsets.length;
+	}
+
+	private Object decode(int slot) {
+		if (offsets[slot] == NULL_COLUMN) {
+			return null;
+		}
+		if (decoded == null) {
+			decoded = new Object[offsets.length];
+		}
+		Object o = decoded[slot];
+		if (o == null) {
+			o = decoder.decodeColumn(slot, buf, offsets[slot]);
+			decoded[slot] = o;
+		}
+		return o;
+	}
+
+	private Map<String, Object> materialize() {
+		if (materialized == null) {
+			Map<String, Object> m = new HashMap<String, Object>((int) ((presentColumns + 1) / 0.75f) + 1);
+			m.put(pkColumn, key);
+			for (int i = 0; i < offsets.length; i++) {
+				if (offsets[i] != NULL_COLUMN) {
+					m.put(columns[i], decode(i));
+				}
+			}
+			materialized = m;
+			decoded = null;
+		}
+		return materialized;
+	}
+
+	@Override
+	public Object get(Object name) {
+		if (materialized != null) {
+			return materialized.get(name);
+		}
+		if (pkColumn.equals(name)) {
+			return key;
+		}
+		Integer slot = slots.get(name);
+		return slot == null ? null : decode(slot);
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		if (materialized != null) {
+			return materialized.containsKey(name);
+		}
+		if (pkColumn.equals(name)) {
+			return true;
+		}
+		Integer slot = slots.get(name);
+		return slot != null && offsets[slot] != NULL_COLUMN;
+	}
+
+	@Override
+	public int size() {
+		return materialized != null ? materialized.size() : presentColumns + 1;
+	}
+
+	@Override
+	public Object put(String name, Object value) {
+		return materialize().put(name, value);
+	}
+
+	@Override
+	public Object remove(Object name) {
+		return materialize().remove(name);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ?> m) {
+		materialize().putAll(m);
+	}
+
+	@Override
+	public void clear() {
+		materialize().clear();
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		if (materialized != null) {
+			return materialized.entrySet();
+		}
+		return new AbstractSet<Entry<String, Object>>() {
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				if (materialized != null) {
+					return materialized.entrySet().iterator();
+				}
+				return new LazyEntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return BerkleyLazyRowMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterates the primary key and the non-null columns. Values are decoded by
+	 * "getValue()", so only the columns actually read are decoded.
+	 */
+	private class LazyEntryIterator implements Iterator<Entry<String, Object>> {
+		private boolean pkReturned = false;
+		private int next = -1;
+
+		LazyEntryIterator() {
+			advance();
+		}
+
+		private void advance() {
+			next++;
+			while (next < offsets.length && offsets[next] == NULL_COLUMN) {
+				next++;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !pkReturned || next < offsets.length;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (!pkReturned) {
+				pkReturned = true;
+				return new SimpleImmutableEntry<String, Object>(pkColumn, key) {
+					@Override
+					public Object setValue(Object value) {
+						return put(pkColumn, value);
+					}
+				};
+			}
+			if (next >= offsets.length) {
+				throw new NoSuchElementException();
+			}
+			final int slot = next;
+			advance();
+			return new Entry<String, Object>() {
+				@Override
+				public String getKey() {
+					return columns[slot];
+				}
+
+				@Override
+				public Object getValue() {
+					return get(columns[slot]);
+				}
+
+				@Override
+				public Object setValue(Object value) {
+					return put(columns[slot], value);
+				}
+
+				@Override
+				public boolean equals(Object o) {
+					if (!(o instanceof Entry)) {
+						return false;
+					}
+					Entry<?, ?> e = (Entry<?, ?>) o;
+					return getKey().equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+				}
+
+				@Override
+				public int hashCode() {
+					return getKey().hashCode() ^ Objects.hashCode(getValue());
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sleepycat.je.EnvironmentMutableConfig;
+import com.sleepycat.je.EnvironmentStats;
+import com.sleepycat.je.StatsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The process-wide memory budget of {@link BerkleyBackedCache#BERKLEY_MEMORY_BUDGET}:
+ * divides one total between the internal caches of all open environments
+ * registered with it, and periodically moves memory to the environments that
+ * profit from it.
+ * <p>
+ * Every environment keeps a quarter of the budget divided evenly (but at
+ * least {@link #MINIMUM_CACHE_SIZE}). The rest is divided in proportion to the
+ * B-tree bottom nodes (BINs) each environment fetched since the last
+ * rebalancing. Keyed lookups and writes descend the tree once per operation
+ * and fetch a BIN each time, while a sequential scan fetches a BIN only every
+ * hundred or so records, so hot lookup caches get the memory and caches read
+ * once by a scan get little. An environment whose internal cache is less
+ * than {@link #FITS_RATIO} full holds its working set already, and gets no
+ * more than a quarter more than it uses.
+ */
+final class BerkleyMemoryBudget {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyMemoryBudget.class);
+
+	static final long DEFAULT_INTERVAL = 10000;
+	static final long MINIMUM_CACHE_SIZE = 1024L * 1024;
+	private static final double FITS_RATIO = 0.8;
+	/**
+	 * Sizes change by at least this fraction, so small fluctuations of the
+	 * load don't resize the caches at every rebalancing.
+	 */
+	private static final double MIN_CHANGE = 0.05;
+
+	private static final StatsConfig STATS_CONFIG = new StatsConfig().setFast(true);
+	private static final Map<BerkleyEnvironment, Member> members = new IdentityHashMap<BerkleyEnvironment, Member>();
+	private static long total = 0;
+	private static long interval = DEFAULT_INTERVAL;
+	private static Thread rebalancer = null;
+
+	private BerkleyMemoryBudget() {
+	}
+
+	/**
+	 * Adds "env" to a budget of "budget" bytes, rebalanced every "intervalMillis".
+	 * The last registration sets the budget and interval for all environments.
+	 * An environment may be registered by each cache it hosts; every call must
+	 * be matched by an {@link #unregister} call before the environment is closed.
+	 */
+	static synchronized void register(BerkleyEnvironment env, long budget, long intervalMillis) {
+		if (budget != total && !members.isEmpty()) {
+			LOG.info("Changing the memory budget of Berkley caches from " + total + " to " + budget + " bytes");
+		}
+		total = budget;
+		interval = intervalMillis;
+		Member member = members.get(env);
+		if (member != null) {
+			member.references++;
+			return;
+		}
+		member = new Member(env);
+		members.put(env, member);
+		// a newcomer starts with an even share, taken from the others in proportion to their sizes
+		long share = Math.max(MINIMUM_CACHE_SIZE, total / members.size());
+		long others = 0;
+		for (Member m : members.values()) {
+			if (m != member) {
+				others += m.size;
+			}
+		}
+		if (others > 0 && others + share > total) {
+			double scale = (double) Math.max(0, total - share) / others;
+			for (Member m : members.values()) {
+				if (m != member) {
+					m.resize(Math.max(MINIMUM_CACHE_SIZE, (long) (m.size * scale)));
+				}
+			}
+		}
+		member.resize(share);
+		LOG.info("Added environment " + env.getHome() + " to the memory budget of Berkley caches with "
+				+ share + " bytes, " + members.size() + " environments share " + total + " bytes");
+		if (rebalancer == null) {
+			rebalancer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runRebalancer();
+				}
+			}, "BerkleyMemoryBudget");
+			rebalancer.setDaemon(true);
+			rebalancer.start();
+		} else {
+			BerkleyMemoryBudget.class.notifyAll();
+		}
+	}
+
+	static synchronized void unregister(BerkleyEnvironment env) {
+		Member member = members.get(env);
+		if (member != null && --member.references == 0) {
+			members.remove(env);
+			// the others get the memory at the next rebalancing
+			BerkleyMemoryBudget.class.notifyAll();
+		}
+	}
+
+	private static synchronized void runRebalancer() {
+		try {
+			while (!members.isEmpty()) {
+				long next = System.currentTimeMillis() + interval;
+				long wait;
+				while (!members.isEmpty() && (wait = next - System.currentTimeMillis()) > 0) {
+					BerkleyMemoryBudget.class.wait(wait);
+				}
+				if (!members.isEmpty()) {
+					rebalance();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			LOG.warn("Stopped rebalancing the memory budget of Berkley caches", e);
+		} finally {
+			rebalancer = null;
+		}
+	}
+
+	/**
+	 * Divides the budget as described in the class comment, and resizes the
+	 * internal caches that change enough.
+	 */
+	static synchronized void rebalance() {
+		int n = members.size();
+		if (n == 0) {
+			return;
+		}
+		long floor = Math.max(MINIMUM_CACHE_SIZE, total / (4L * n));
+		long demand = 0;
+		for (Member m : members.values()) {
+			m.sample();
+			m.target = floor;
+			demand += m.binFetches;
+		}
+		long spare = total - floor * n;
+		if (demand == 0 || spare <= 0) {
+			// nothing was read or written, so there's nothing to learn from
+			return;
+		}
+		// water-filling: hand out the spare memory by demand, and the share a
+		// member can't use to the others
+		List<Member> open = new ArrayList<Member>();
+		for (Member m : members.values()) {
+			if (m.binFetches > 0) {
+				open.add(m);
+			}
+		}
+		boolean capped = true;
+		while (capped && !open.isEmpty() && spare > 0) {
+			capped = false;
+			long openDemand = 0;
+			for (Member m : open) {
+				openDemand += m.binFetches;
+			}
+			for (int i = 0; i < open.size(); i++) {
+				Member m = open.get(i);
+				long share = (long) ((double) spare * m.binFetches / openDemand);
+				if (m.target + share > m.cap) {
+					spare -= m.cap - m.target;
+					m.target = m.cap;
+					open.remove(i);
+					capped = true;
+					break;
+				}
+			}
+			if (!capped) {
+				for (Member m : open) {
+					m.target += (long) ((double) spare * m.binFetches / openDemand);
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Member m : members.values()) {
+			if (Math.abs(m.target - m.size) > m.size * MIN_CHANGE) {
+				sb.append(sb.length() == 0 ? "" : ", ").append(m).append(": ").append(m.size).append(" -> ")
+						.append(m.target);
+				m.resize(m.target);
+			}
+		}
+		if (sb.length() > 0) {
+			LOG.info("Rebalanced the memory budget of Berkley caches (" + total + " bytes): " + sb);
+		}
+		if (LOG.isDebugEnabled()) {
+			for (Member m : members.values()) {
+				LOG.debug("Memory budget: " + m + " " + m.size + " bytes, " + m.usedBytes + " used, "
+						+ m.binFetches + " BIN fetches, miss rate " + m.missRate());
+			}
+		}
+	}
+
+	/**
+	 * Returns the current size of the internal cache of "env", or -1 if it's
+	 * not registered.
+	 */
+	static synchronized long getSize(BerkleyEnvironment env) {
+		Member member = members.get(env);
+		return member == null ? -1 : member.size;
+	}
+
+	private static class Member {
+		private final BerkleyEnvironment env;
+		private int references = 1;
+		private long size;
+		private long target;
+		private long cap;
+		private long usedBytes;
+		// cumulative counters of the last sample, and their increase since the one before
+		private long lastBinFetches;
+		private long lastFetches;
+		private long lastMisses;
+		private long binFetches;
+		private long fetches;
+		private long misses;
+
+		Member(BerkleyEnvironment env) {
+			this.env = env;
+			this.size = env.getMutableConfig().getCacheSize();
+			sample();
+		}
+
+		void sample() {
+			EnvironmentStats stats = env.getStats(STATS_CONFIG);
+			long totalBinFetches = stats.getNBINsFetch();
+			long totalFetches = stats.getNLNsFetch() + totalBinFetches + stats.getNUpperINsFetch();
+			long totalMisses = stats.getNLNsFetchMiss() + stats.getNBINsFetchMiss() + stats.getNUpperINsFetchMiss();
+			binFetches = totalBinFetches - lastBinFetches;
+			fetches = totalFetches - lastFetches;
+			misses = totalMisses - lastMisses;
+			lastBinFetches = totalBinFetches;
+			lastFetches = totalFetches;
+			lastMisses = totalMisses;
+			usedBytes = stats.getCacheTotalBytes();
+			cap = usedBytes < size * FITS_RATIO ? Math.max(MINIMUM_CACHE_SIZE, usedBytes + usedBytes / 4) : Long.MAX_VALUE;
+		}
+
+		void resize(long bytes) {
+			EnvironmentMutableConfig config = env.getMutableConfig();
+			config.setCacheSize(bytes);
+			env.setMutableConfig(config);
+			size = bytes;
+		}
+
+		String missRate() {
+			return fetches == 0 ? "-" : String.format("%.3f", (double) misses / fetches);
+		}
+
+		@Override
+		public String toString() {
+			return env.getHome().getName();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.PreloadConfig;
+import com.sleepycat.je.PreloadStats;
+import com.sleepycat.je.PreloadStatus;
+import com.sleepycat.je.ProgressListener;
+import com.sleepycat.je.StatsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up the internal cache of a {@link BerkleyBackedCache} database with
+ * {@link Database#preload(PreloadConfig)}, see
+ * {@link BerkleyBackedCache#BERKLEY_PRELOAD}.
+ * <p>
+ * The internal nodes are loaded first, as they serve every lookup. With
+ * "loadRecords", the records follow as far as the limits allow. The time
+ * limit covers both passes. On a thread of its own (see {@link #start()}), the
+ * preload runs alongside the cache's other operations, pausing regularly to
+ * let them through, until it finishes or is {@link #cancel() cancelled}.
+ */
+class BerkleyPreloader implements Runnable {
+	private static final Logger LOG = LoggerFactory.getLogger(BerkleyPreloader.class);
+	private static final StatsConfig STATS_CONFIG = new StatsConfig().setFast(true);
+	/**
+	 * A background preload pauses for a millisecond after loading this many
+	 * nodes, or it would keep the cache's other threads off the B-tree latches
+	 * (and, on few cores, off the CPU) until it's done.
+	 */
+	private static final int BACKGROUND_PAUSE_NODES = 100;
+
+	private final Database db;
+	private final String cacheName;
+	private final boolean loadRecords;
+	private final long maxBytes;
+	private final long maxMillis;
+	private volatile boolean cancelled = false;
+	private Thread thread = null;
+
+	/**
+	 * A "maxBytes" or "maxMillis" of 0 means no limit but JE's own: the size
+	 * of the internal cache.
+	 */
+	BerkleyPreloader(Database db, String cacheName, boolean loadRecords, long maxBytes, long maxMillis) {
+		this.db = db;
+		this.cacheName = cacheName;
+		this.loadRecords = loadRecords;
+		this.maxBytes = maxBytes;
+		this.maxMillis = maxMillis;
+	}
+
+	void start() {
+		thread = new Thread(this, "BerkleyPreload-" + cacheName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops a running preload and waits for it, so the database can be closed.
+	 */
+	void cancel() {
+		cancelled = true;
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			Environment env = db.getEnvironment();
+			long start = System.currentTimeMillis();
+			long bytesBefore = env.getStats(STATS_CONFIG).getCacheTotalBytes();
+			PreloadStats nodes = db.preload(newConfig(false, maxMillis));
+			PreloadStats records = null;
+			long elapsed = System.currentTimeMillis() - start;
+			if (loadRecords && nodes.getStatus() == PreloadStatus.SUCCESS
+					&& (maxMillis == 0 || elapsed < maxMillis)) {
+				records = db.preload(newConfig(true, maxMillis == 0 ? 0 : maxMillis - elapsed));
+				elapsed = System.currentTimeMillis() - start;
+			}
+			long loaded = env.getStats(STATS_CONFIG).getCacheTotalBytes() - bytesBefore;
+			LOG.info("Preloaded cache: " + cacheName + " in " + elapsed + " ms, " + Math.max(0, loaded)
+					+ " bytes: " + (nodes.getNINsLoaded() + nodes.getNBINsLoaded()) + " internal nodes ("
+					+ nodes.getStatus() + ")"
+					+ (records == null ? "" : ", " + records.getNLNsLoaded() + " records (" + records.getStatus() + ")"));
+		} catch (RuntimeException e) {
+			if (cancelled) {
+				LOG.debug("Preload of cache: " + cacheName + " stopped by close", e);
+			} else {
+				LOG.warn("Preload of cache: " + cacheName + " failed", e);
+			}
+		}
+	}
+
+	private PreloadConfig newConfig(boolean lns, long millis) {
+		PreloadConfig config = new PreloadConfig();
+		config.setLoadLNs(lns);
+		if (maxBytes > 0) {
+			config.setMaxBytes(maxBytes);
+		}
+		if (millis > 0) {
+			config.setMaxMillisecs(millis);
+		}
+		config.setProgressListener(new ProgressListener<PreloadConfig.Phases>() {
+			@Override
+			public boolean progress(PreloadConfig.Phases phase, long n, long total) {
+				if (thread != null && n % BACKGROUND_PAUSE_NODES == 0) {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+				return !cancelled;
+			}
+		});
+		return config;
+	}
+}
@@ -0,0 +1,130 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of lookup results of a {@link BerkleyBackedCache},
+ * bounded by the estimated heap size of its entries. Entries are keyed by the
+ * encoded primary key; a key without rows is cached too.
+ * <p>
+ * An entry holds the rows of one lookup. Callers never get these rows: a put
+ * caches copies of the rows it is given, and every hit returns fresh
+ * {@link BerkleyLazyRowMap#copy() copies}, which decode their values from the
+ * cached records again, so rows modified by transformers can't leak into
+ * later lookups.
+ * <p>
+ * All methods are synchronized, so the cache can be shared by DIH threads.
+ */
+class BerkleyRowCache {
+
+	/**
+	 * Rough heap overhead of an entry: map entry, key buffer and list objects.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	/**
+	 * Rough heap overhead of a row: the row object and its offsets array header.
+	 */
+	private static final int ROW_OVERHEAD = 64;
+
+	private final long maxBytes;
+	private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<ByteBuffer, Entry>(64, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	BerkleyRowCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns false if "key" is not cached. Otherwise adds copies of its rows
+	 * to "result" (none if the key has no rows) and returns true.
+	 */
+	synchronized boolean get(byte[] key, int offset, int length, List<Map<String, Object>> result) {
+		Entry entry = entries.get(ByteBuffer.wrap(key, offset, length));
+		if (entry == null) {
+			misses++;
+			return false;
+		}
+		hits++;
+		for (BerkleyLazyRowMap row : entry.rows) {
+			result.add(row.copy());
+		}
+		return true;
+	}
+
+	/**
+	 * Caches copies of "rows" (or no rows, if null) as the result of looking up
+	 * "key". The given rows stay the caller's.
+	 */
+	synchronized void put(byte[] key, int offset, int length, List<Map<String, Object>> rows) {
+		byte[] keyCopy = new byte[length];
+		System.arraycopy(key, offset, keyCopy, 0, length);
+		List<BerkleyLazyRowMap> cachedRows = Collections.emptyList();
+		long size = ENTRY_OVERHEAD + length;
+		if (rows != null) {
+			cachedRows = new ArrayList<BerkleyLazyRowMap>(rows.size());
+			byte[] lastRecord = null;
+			for (Map<String, Object> row : rows) {
+				BerkleyLazyRowMap lazyRow = ((BerkleyLazyRowMap) row).copy();
+				cachedRows.add(lazyRow);
+				size += ROW_OVERHEAD + 4L * lazyRow.getColumnCount();
+				// rows of one record are adjacent and share its bytes
+				if (lazyRow.getRecord() != lastRecord) {
+					lastRecord = lazyRow.getRecord();
+					size += lastRecord.length;
+				}
+			}
+		}
+		if (size > maxBytes) {
+			return;
+		}
+		Entry prior = entries.put(ByteBuffer.wrap(keyCopy), new Entry(cachedRows, size));
+		if (prior != null) {
+			bytes -= prior.size;
+		}
+		bytes += size;
+		Iterator<Entry> iter = entries.values().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= iter.next().size;
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	synchronized void remove(byte[] key, int offset, int length) {
+		Entry entry = entries.remove(ByteBuffer.wrap(key, offset, length));
+		if (entry != null) {
+			bytes -= entry.size;
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	synchronized String getStats() {
+		long lookups = hits + misses;
+		return hits + " hits, " + misses + " misses ("
+				+ (lookups == 0 ? 0 : (100 * hits / lookups)) + "% hit rate), " + evictions + " evictions, "
+				+ entries.size() + " entries of " + bytes + " bytes";
+	}
+
+	private static class Entry {
+		private final List<BerkleyLazyRowMap> rows;
+		private final long size;
+
+		Entry(List<BerkleyLazyRowMap> rows, long size) {
+			this.rows = rows;
+			this.size = size;
+		}
+	}
+}
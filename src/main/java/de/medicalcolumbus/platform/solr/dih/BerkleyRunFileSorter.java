@@ -0,0 +1,234 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort of encoded (key, value) pairs, used by
+ * {@link BerkleyBackedCache} to bulk-load a cache in key order.
+ * <p>
+ * Pairs are buffered in memory until the buffer size is exceeded, then sorted
+ * by key and spilled to a run file. {@link #merge(GroupHandler)} merges all
+ * runs and hands every key with all of its values to the handler, in key order.
+ * Values of one key keep the order in which they were added.
+ */
+class BerkleyRunFileSorter {
+
+	/**
+	 * Rough per-entry heap overhead (two arrays plus the entry object), used
+	 * when estimating the buffer size.
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return compareKeys(e1.key, e2.key);
+		}
+	};
+
+	interface GroupHandler {
+		void group(byte[] key, List<byte[]> values) throws Exception;
+	}
+
+	private final File dir;
+	private final String prefix;
+	private final long maxBufferBytes;
+	private List<Entry> buffer = new ArrayList<Entry>();
+	private long bufferBytes = 0;
+	private List<File> runs = new ArrayList<File>();
+	private long totalEntries = 0;
+
+	BerkleyRunFileSorter(File dir, String prefix, long maxBufferBytes) {
+		this.dir = dir;
+		this.prefix = prefix;
+		this.maxBufferBytes = maxBufferBytes;
+	}
+
+	static int compareKeys(byte[] k1, byte[] k2) {
+		int len = Math.min(k1.length, k2.length);
+		for (int i = 0; i < len; i++) {
+			int diff = (k1[i] & 0xff) - (k2[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return k1.length - k2.length;
+	}
+
+	void add(byte[] key, byte[] value) throws IOException {
+		buffer.add(new Entry(key, value));
+		bufferBytes += key.length + value.length + ENTRY_OVERHEAD;
+		totalEntries++;
+		if (bufferBytes >= maxBufferBytes) {
+			spill();
+		}
+	}
+
+	boolean isEmpty() {
+		return totalEntries == 0;
+	}
+
+	long size() {
+		return totalEntries;
+	}
+
+	int getRunCount() {
+		return runs.size();
+	}
+
+	private void spill() throws IOException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		Collections.sort(buffer, ENTRY_ORDER);
+		File run = new File(dir, prefix + "-run" + runs.size() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for (Entry e : buffer) {
+				out.writeInt(e.key.length);
+				out.write(e.key);
+				out.writeInt(e.value.length);
+				out.write(e.value);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(run);
+		buffer = new ArrayList<Entry>();
+		bufferBytes = 0;
+	}
+
+	/**
+	 * Merges everything added so far and passes each distinct key, with its
+	 * values in insertion order, to the handler. The sorter is empty afterwards.
+	 */
+	void merge(GroupHandler handler) throws Exception {
+		try {
+			if (runs.isEmpty()) {
+				Collections.sort(buffer, ENTRY_ORDER);
+				int i = 0;
+				while (i < buffer.size()) {
+					byte[] key = buffer.get(i).key;
+					List<byte[]> values = new ArrayList<byte[]>(1);
+					while (i < buffer.size() && compareKeys(key, buffer.get(i).key) == 0) {
+						values.add(buffer.get(i).value);
+						i++;
+					}
+					handler.group(key, values);
+				}
+				return;
+			}
+			spill();
+			PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size());
+			List<RunReader> readers = new ArrayList<RunReader>(runs.size());
+			try {
+				for (int i = 0; i < runs.size(); i++) {
+					RunReader reader = new RunReader(runs.get(i), i);
+					readers.add(reader);
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+				}
+				while (!queue.isEmpty()) {
+					RunReader reader = queue.poll();
+					byte[] key = reader.key;
+					List<byte[]> values = new ArrayList<byte[]>(1);
+					values.add(reader.value);
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+					while (!queue.isEmpty() && compareKeys(key, queue.peek().key) == 0) {
+						reader = queue.poll();
+						values.add(reader.value);
+						if (reader.advance()) {
+							queue.add(reader);
+						}
+					}
+					handler.group(key, values);
+				}
+			} finally {
+				for (RunReader reader : readers) {
+					reader.close();
+				}
+			}
+		} finally {
+			clear();
+		}
+	}
+
+	/**
+	 * Drops all buffered entries and deletes the run files.
+	 */
+	void clear() {
+		for (File run : runs) {
+			if (!run.delete()) {
+				run.deleteOnExit();
+			}
+		}
+		runs = new ArrayList<File>();
+		buffer = new ArrayList<Entry>();
+		bufferBytes = 0;
+		totalEntries = 0;
+	}
+
+	private static class Entry {
+		private final byte[] key;
+		private final byte[] value;
+
+		Entry(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static class RunReader implements Comparable<RunReader> {
+		private final DataInputStream in;
+		private final int runIndex;
+		private byte[] key;
+		private byte[] value;
+
+		RunReader(File run, int runIndex) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.runIndex = runIndex;
+		}
+
+		boolean advance() throws IOException {
+			int keyLen;
+			try {
+				keyLen = in.readInt();
+			} catch (EOFException e) {
+				key = null;
+				value = null;
+				return false;
+			}
+			key = new byte[keyLen];
+			in.readFully(key);
+			value = new byte[in.readInt()];
+			in.readFully(value);
+			return true;
+		}
+
+		/**
+		 * Ties are broken by run index, so values of a key that was spilled into
+		 * several runs come out in the order they were added.
+		 */
+		@Override
+		public int compareTo(RunReader o) {
+			int c = compareKeys(key, o.key);
+			return c != 0 ? c : runIndex - o.runIndex;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dictionary of one STRING column of a {@link BerkleyBackedCache}: maps the
+ * column's most common values to small integer codes.
+ * <p>
+ * Values are assigned the next code the first time they are seen, until the
+ * dictionary holds "maxSize" values; from then on new values are stored
+ * literally. Low-cardinality columns (locales, kinds, status codes) end up
+ * fully coded. Codes are never reassigned, so records written earlier stay
+ * valid.
+ * <p>
+ * The first {@link #SAMPLE_SIZE} values tell the two kinds of column apart. If
+ * more than {@link #MAX_MISS_RATIO} of them could not be coded with an existing
+ * code, the column is taken to be high-cardinality (names, descriptions,
+ * numbers) and the dictionary is dropped: later values are stored literally
+ * without a lookup, and only the codes given out so far stay resolvable. The
+ * decision is persisted with the dictionary.
+ * <p>
+ * {@link #value(int)} returns the same String instance for every occurrence of
+ * a code.
+ */
+class BerkleyStringDictionary {
+
+	/**
+	 * Longer values are not worth a dictionary slot.
+	 */
+	static final int MAX_VALUE_LENGTH = 64;
+	/**
+	 * The # of values after which a dictionary is kept or dropped.
+	 */
+	static final int SAMPLE_SIZE = 1000;
+	/**
+	 * The share of sampled values that were new or too long above which a
+	 * dictionary is dropped.
+	 */
+	static final double MAX_MISS_RATIO = 0.5;
+
+	private final int maxSize;
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+	private volatile String[] values = new String[0];
+	private int size = 0;
+	private boolean dirty = false;
+	private int sampled = 0;
+	private int misses = 0;
+	private boolean dropped = false;
+
+	BerkleyStringDictionary(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the code of "s", assigning one if there is room, or -1 if "s" is
+	 * to be stored literally.
+	 */
+	synchronized int code(String s) {
+		if (dropped) {
+			return -1;
+		}
+		Integer code = codes.get(s);
+		if (sampled < SAMPLE_SIZE) {
+			sampled++;
+			if (code == null) {
+				misses++;
+			}
+			if (sampled == SAMPLE_SIZE && misses > SAMPLE_SIZE * MAX_MISS_RATIO) {
+				drop();
+				return code != null ? code : -1;
+			}
+		}
+		if (code != null) {
+			return code;
+		}
+		if (size >= maxSize || s.length() > MAX_VALUE_LENGTH) {
+			return -1;
+		}
+		add(s);
+		dirty = true;
+		return size - 1;
+	}
+
+	synchronized boolean isDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Stops coding values; the codes given out so far stay resolvable.
+	 */
+	private void drop() {
+		dropped = true;
+		codes.clear();
+		dirty = true;
+	}
+
+	String value(int code) {
+		String[] v = values;
+		if (code >= v.length || v[code] == null) {
+			throw new IllegalStateException("Unknown dictionary code " + code);
+		}
+		return v[code];
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	private void add(String s) {
+		String[] v = values;
+		if (size == v.length) {
+			String[] grown = new String[Math.max(16, v.length * 2)];
+			System.arraycopy(v, 0, grown, 0, size);
+			v = grown;
+		}
+		v[size] = s;
+		codes.put(s, size);
+		size++;
+		values = v;
+	}
+
+	/**
+	 * Reads the dictionaries of all columns from "file", by column name. Returns
+	 * an empty map if the file doesn't exist.
+	 * <p>
+	 * The names of the dropped dictionaries follow those of all columns, so a
+	 * file written before dictionaries could be dropped reads as before.
+	 */
+	static Map<String, BerkleyStringDictionary> load(File file, int maxSize) throws IOException {
+		Map<String, BerkleyStringDictionary> dictionaries = new LinkedHashMap<String, BerkleyStringDictionary>();
+		if (!file.exists()) {
+			return dictionaries;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int columns = in.readInt();
+			for (int i = 0; i < columns; i++) {
+				String column = in.readUTF();
+				int size = in.readInt();
+				// codes already in use have to stay resolvable
+				BerkleyStringDictionary dictionary = new BerkleyStringDictionary(Math.max(maxSize, size));
+				for (int j = 0; j < size; j++) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+				}
+				dictionaries.put(column, dictionary);
+			}
+			int dropped;
+			try {
+				dropped = in.readInt();
+			} catch (EOFException e) {
+				dropped = 0;
+			}
+			for (int i = 0; i < dropped; i++) {
+				BerkleyStringDictionary dictionary = dictionaries.get(in.readUTF());
+				if (dictionary != null) {
+					dictionary.dropped = true;
+					dictionary.codes.clear();
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return dictionaries;
+	}
+
+	/**
+	 * Writes the dictionaries of all columns to "file", replacing it only once
+	 * the new content is complete.
+	 */
+	static void save(File file, Map<String, BerkleyStringDictionary> dictionaries) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			List<String> dropped = new ArrayList<String>();
+			out.writeInt(dictionaries.size());
+			for (Map.Entry<String, BerkleyStringDictionary> e : dictionaries.entrySet()) {
+				BerkleyStringDictionary dictionary = e.getValue();
+				List<String> values = new ArrayList<String>();
+				synchronized (dictionary) {
+					for (int i = 0; i < dictionary.size; i++) {
+						values.add(dictionary.values[i]);
+					}
+					if (dictionary.dropped) {
+						dropped.add(e.getKey());
+					}
+					dictionary.dirty = false;
+				}
+				out.writeUTF(e.getKey());
+				out.writeInt(values.size());
+				for (String value : values) {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+			out.writeInt(dropped.size());
+			for (String column : dropped) {
+				out.writeUTF(column);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,50 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.solr.handler.dataimport.Context;
+
+/**
+ * Partitions by a stable hash of the type-normalized key (see
+ * {@link DIHCachePartitionKey}), so a key lands in the same partition whatever
+ * type the JDBC driver returns it as, and sequential or clustered keys spread
+ * evenly.
+ */
+public class DIHCacheHashPartitioner implements DIHCachePartitioner {
+
+	private int numPartitions = 1;
+
+	@Override
+	public void init(Context context, int numPartitions) {
+		this.numPartitions = numPartitions;
+	}
+
+	@Override
+	public void load(Properties properties, int numPartitions) {
+		this.numPartitions = numPartitions;
+	}
+
+	@Override
+	public void save(Properties properties) {
+	}
+
+	@Override
+	public int getSampleSize() {
+		return 0;
+	}
+
+	@Override
+	public void sample(List<Object> keys) {
+	}
+
+	@Override
+	public int getPartition(Object key) {
+		return Math.floorMod(DIHCachePartitionKey.of(key).stableHash(), numPartitions);
+	}
+
+	@Override
+	public boolean isTypeStable() {
+		return true;
+	}
+}
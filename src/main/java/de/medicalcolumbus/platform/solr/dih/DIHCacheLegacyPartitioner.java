@@ -0,0 +1,45 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.solr.handler.dataimport.Context;
+
+/**
+ * Partitions by the key's own hashCode(), as DIHCacheWriter always did. The
+ * same logical key may land in different partitions if it comes as different
+ * types, and clustered keys may skew the partitions. This is the default, so
+ * that existing partitioned caches keep their layout.
+ */
+public class DIHCacheLegacyPartitioner implements DIHCachePartitioner {
+
+	private int numPartitions = 1;
+
+	@Override
+	public void init(Context context, int numPartitions) {
+		this.numPartitions = numPartitions;
+	}
+
+	@Override
+	public void load(Properties properties, int numPartitions) {
+		this.numPartitions = numPartitions;
+	}
+
+	@Override
+	public void save(Properties properties) {
+	}
+
+	@Override
+	public int getSampleSize() {
+		return 0;
+	}
+
+	@Override
+	public void sample(List<Object> keys) {
+	}
+
+	@Override
+	public int getPartition(Object key) {
+		return Math.abs(key.hashCode() % numPartitions);
+	}
+}
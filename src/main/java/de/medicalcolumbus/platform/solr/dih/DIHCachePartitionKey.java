@@ -0,0 +1,111 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+/**
+ * A primary key in a form that doesn't depend on the Java type the JDBC
+ * driver happened to return: Integer 42, Long 42, BigDecimal 42.00, Double 42.0
+ * and the String "42" are all the same key.
+ * <p>
+ * Numbers (and Strings that are decimal numbers) are normalized to their
+ * shortest plain decimal representation, Dates to their epoch milliseconds.
+ * Anything else is its trimmed String. Numeric keys order numerically and
+ * before all other keys, which order as Strings.
+ */
+final class DIHCachePartitionKey implements Comparable<DIHCachePartitionKey> {
+
+	private static final Pattern DECIMAL = Pattern.compile("[-+]?\\d+(\\.\\d+)?");
+
+	private final BigDecimal number;
+	private final String canonical;
+
+	private DIHCachePartitionKey(BigDecimal number, String canonical) {
+		this.number = number;
+		this.canonical = canonical;
+	}
+
+	static DIHCachePartitionKey of(Object key) {
+		BigDecimal number = null;
+		if (key instanceof BigDecimal) {
+			number = (BigDecimal) key;
+		} else if (key instanceof BigInteger) {
+			number = new BigDecimal((BigInteger) key);
+		} else if (key instanceof Double || key instanceof Float) {
+			double d = ((Number) key).doubleValue();
+			if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+				number = BigDecimal.valueOf(d);
+			}
+		} else if (key instanceof Number) {
+			number = BigDecimal.valueOf(((Number) key).longValue());
+		} else if (key instanceof Date) {
+			number = BigDecimal.valueOf(((Date) key).getTime());
+		} else {
+			String s = String.valueOf(key).trim();
+			if (s.length() < 64 && DECIMAL.matcher(s).matches()) {
+				number = new BigDecimal(s);
+			} else {
+				return new DIHCachePartitionKey(null, s);
+			}
+		}
+		if (number == null) {
+			return new DIHCachePartitionKey(null, key.toString());
+		}
+		if (number.signum() == 0) {
+			number = BigDecimal.ZERO;
+		} else {
+			number = number.stripTrailingZeros();
+			if (number.scale() < 0) {
+				number = number.setScale(0);
+			}
+		}
+		return new DIHCachePartitionKey(number, number.toPlainString());
+	}
+
+	/**
+	 * The normalized key as a String; {@link #of(Object)} returns an equal key
+	 * for it.
+	 */
+	String canonical() {
+		return canonical;
+	}
+
+	/**
+	 * A hash of the normalized key that is the same in every JVM.
+	 */
+	int stableHash() {
+		int h = canonical.hashCode();
+		// murmur3 finalizer, so that clustered keys spread over all partitions
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	@Override
+	public int compareTo(DIHCachePartitionKey o) {
+		if (number != null) {
+			return o.number != null ? number.compareTo(o.number) : -1;
+		}
+		return o.number != null ? 1 : canonical.compareTo(o.canonical);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof DIHCachePartitionKey && canonical.equals(((DIHCachePartitionKey) o).canonical);
+	}
+
+	@Override
+	public int hashCode() {
+		return canonical.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return canonical;
+	}
+}
@@ -0,0 +1,216 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.handler.dataimport.DIHCache;
+import org.apache.solr.handler.dataimport.DataImportHandlerException;
+
+/**
+ * Writes to one partition of a {@link DIHCacheWriter} on a thread of its own.
+ * <p>
+ * Operations are collected into batches of "batchSize" and handed to the
+ * writer thread through a queue of at most "queueSize" batches. Once the queue
+ * is full, the submitting thread waits, so a slow partition throttles the
+ * import instead of buffering it in memory. The writer thread is the only one
+ * to touch the cache until {@link #close()} returns, and applies operations in
+ * the order they were submitted. Operations may be submitted by several
+ * threads.
+ * <p>
+ * A failure stops the writer thread. Pending operations of this partition are
+ * discarded, and every following call rethrows the failure. Operations
+ * submitted after {@link #close()} are rejected.
+ */
+class DIHCachePartitionWriter implements Runnable {
+
+	private static final Object FLUSH = new Object();
+	private static final Object DELETE_ALL = new Object();
+	private static final List<Object> END = new ArrayList<Object>(0);
+
+	private final DIHCache cache;
+	private final int partition;
+	private final int batchSize;
+	private final BlockingQueue<List<Object>> queue;
+	private final Thread thread;
+	private List<Object> batch;
+	private boolean closed = false;
+	private volatile Throwable failure = null;
+	private volatile CountDownLatch flushed = null;
+	private long operations = 0;
+	private long waits = 0;
+
+	DIHCachePartitionWriter(DIHCache cache, int partition, String name, int queueSize, int batchSize) {
+		this.cache = cache;
+		this.partition = partition;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<List<Object>>(queueSize);
+		this.batch = new ArrayList<Object>(batchSize);
+		this.thread = new Thread(this, "DIHCacheWriter-" + name + "-part" + partition);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	synchronized void add(Map<String, Object> rec) {
+		submit(rec);
+	}
+
+	synchronized void delete(Object key) {
+		submit(new Delete(key));
+	}
+
+	synchronized void deleteAll() {
+		submit(DELETE_ALL);
+	}
+
+	/**
+	 * Starts flushing the cache after all operations submitted so far. Use
+	 * {@link #awaitFlush()} to wait for it to finish.
+	 */
+	synchronized void startFlush() {
+		CountDownLatch latch = new CountDownLatch(1);
+		flushed = latch;
+		submit(FLUSH);
+		sendBatch();
+		checkFailure();
+	}
+
+	void awaitFlush() {
+		CountDownLatch latch = flushed;
+		if (latch != null) {
+			try {
+				while (latch.getCount() > 0 && thread.isAlive()) {
+					latch.await(1, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+						"Interrupted while flushing cache partition " + partition, e);
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Applies all pending operations and stops the writer thread. The cache is
+	 * not closed.
+	 */
+	synchronized void close() {
+		boolean wasClosed = closed;
+		closed = true;
+		if (!wasClosed && thread.isAlive()) {
+			sendBatch();
+			put(END);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+						"Interrupted while closing cache partition " + partition, e);
+			}
+		}
+		checkFailure();
+	}
+
+	String getStats() {
+		return "partition " + partition + ": " + operations + " operations, producer waited on a full queue "
+				+ waits + " times";
+	}
+
+	private void submit(Object op) {
+		checkFailure();
+		if (closed) {
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"Cache partition " + partition + " is already closed");
+		}
+		batch.add(op);
+		if (batch.size() >= batchSize) {
+			sendBatch();
+		}
+	}
+
+	private void sendBatch() {
+		if (!batch.isEmpty()) {
+			put(batch);
+			batch = new ArrayList<Object>(batchSize);
+		}
+	}
+
+	private void put(List<Object> ops) {
+		try {
+			if (!queue.offer(ops)) {
+				waits++;
+				while (!queue.offer(ops, 1, TimeUnit.SECONDS)) {
+					if (!thread.isAlive()) {
+						checkFailure();
+						throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+								"Writer thread of cache partition " + partition + " has stopped");
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"Interrupted while writing to cache partition " + partition, e);
+		}
+	}
+
+	private void checkFailure() {
+		Throwable t = failure;
+		if (t != null) {
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"Writing to cache partition " + partition + " failed: " + t.getMessage(), t);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void run() {
+		try {
+			while (true) {
+				List<Object> ops = queue.take();
+				if (ops == END) {
+					return;
+				}
+				for (Object op : ops) {
+					if (op == FLUSH) {
+						try {
+							cache.flush();
+						} finally {
+							flushed.countDown();
+						}
+					} else if (op == DELETE_ALL) {
+						cache.deleteAll();
+					} else if (op instanceof Delete) {
+						cache.delete(((Delete) op).key);
+					} else {
+						cache.add((Map<String, Object>) op);
+					}
+					operations++;
+				}
+			}
+		} catch (Throwable t) {
+			if (failure == null) {
+				failure = t;
+			}
+			CountDownLatch latch = flushed;
+			if (latch != null) {
+				latch.countDown();
+			}
+			// the producer notices the stopped thread on its next call
+			queue.clear();
+		}
+	}
+
+	private static class Delete {
+		private final Object key;
+
+		Delete(Object key) {
+			this.key = key;
+		}
+	}
+}
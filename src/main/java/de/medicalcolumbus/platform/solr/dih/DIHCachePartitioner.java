@@ -0,0 +1,58 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.solr.handler.dataimport.Context;
+
+/**
+ * Assigns primary keys to the partitions of a cache written by
+ * {@link DIHCacheWriter} with {@link DIHCachePersistProperties#CACHE_PARTITIONS}.
+ * <p>
+ * The writer saves the partitioner's state next to the partitions, so
+ * {@link DIHCacheProcessor} can later assign keys exactly the same way.
+ * Implementations need a public no-argument constructor.
+ */
+public interface DIHCachePartitioner {
+
+	/**
+	 * Prepares a new partitioning into "numPartitions" partitions, using the
+	 * entity attributes of "context".
+	 */
+	void init(Context context, int numPartitions);
+
+	/**
+	 * Restores a partitioning saved by {@link #save(Properties)}.
+	 */
+	void load(Properties properties, int numPartitions);
+
+	void save(Properties properties);
+
+	/**
+	 * The number of keys this partitioner wants to see before it can assign
+	 * any, or 0 if it needs none. The writer holds back that many documents,
+	 * then passes their keys to {@link #sample(List)}.
+	 */
+	int getSampleSize();
+
+	/**
+	 * Called once with the first keys of the import, at most
+	 * {@link #getSampleSize()} of them (fewer if the import is smaller).
+	 */
+	void sample(List<Object> keys);
+
+	/**
+	 * Returns the partition of "key", from 0 to numPartitions - 1.
+	 */
+	int getPartition(Object key);
+
+	/**
+	 * Returns true if a key gets the same partition whatever type it comes as
+	 * (Integer 42, Long 42, the String "42"). Only then does
+	 * {@link DIHCacheProcessor} skip the foreign keys of other partitions, as a
+	 * foreign key may not have the type of the primary key it matches.
+	 */
+	default boolean isTypeStable() {
+		return false;
+	}
+}
@@ -43,6 +43,8 @@ public final class DIHCachePersistProperties {
 	/**
 	 * <p>
 	 * If true, a pre-existing cache is re-opened for read-only access.
+	 * BerkleyBackedCache then writes nothing to the database and runs no JE
+	 * daemon threads, and any number of processes may open the cache at once.
 	 */
 	public static final String CACHE_READ_ONLY = "persistCacheReadOnly";
 	/**
@@ -51,7 +53,8 @@ public final class DIHCachePersistProperties {
 	 * cache partitions to create.
 	 * <p>
 	 * Caches are numbered beginning at 0. Each Document is placed in a Partition
-	 * based on: (Primary_Key.hashCode() % #Partitions)
+	 * chosen by the CACHE_PARTITIONER, by default based on:
+	 * (Primary_Key.hashCode() % #Partitions)
 	 * <p>
 	 * There are two possible use cases:
 	 * <ul>
@@ -67,12 +70,117 @@ public final class DIHCachePersistProperties {
 	 * Note: This may not be supported by all cache implementations
 	 */
 	public static final String CACHE_PARTITIONS = "persistCachePartitions";
+	/**
+	 * <p>
+	 * To be used with CACHE_PARTITIONS. How documents are assigned to
+	 * partitions:
+	 * <ul>
+	 * <li>"legacy" (default): (Primary_Key.hashCode() % #Partitions). The same
+	 * key may land in different partitions when it comes as different types
+	 * (Integer, Long, BigDecimal, String).</li>
+	 * <li>"hash": a stable hash of the key normalized across types, so 42, 42L,
+	 * 42.00 and "42" are the same key. Spreads clustered keys evenly.</li>
+	 * <li>"range": contiguous ranges of the normalized key, split at
+	 * CACHE_PARTITION_SPLIT_POINTS or at the quantiles of a key sample.</li>
+	 * <li>the class name of a {@link DIHCachePartitioner}.</li>
+	 * </ul>
+	 * <p>
+	 * The writer saves the partitioning to "[cacheName]_partitions.properties"
+	 * in the base directory and logs the number of documents per partition when
+	 * it closes. A DIHCacheProcessor with PARTITION_NUMBER reads that file and,
+	 * with "hash" or "range", skips looking up keys that belong to other
+	 * partitions. With "legacy" it looks up every key, as a foreign key may
+	 * come as another type than the primary key it matches.
+	 */
+	public static final String CACHE_PARTITIONER = "persistCachePartitioner";
+	/**
+	 * <p>
+	 * To be used with CACHE_PARTITIONER "range". A comma-delimited list of
+	 * #Partitions - 1 keys; partition i holds the keys from split point i - 1
+	 * (inclusive) to split point i (exclusive).
+	 * <p>
+	 * If not set, the split points are computed from the first
+	 * CACHE_PARTITION_SAMPLE_SIZE keys of the import, which are held back until
+	 * then. This only balances the partitions if documents don't arrive sorted
+	 * by key.
+	 */
+	public static final String CACHE_PARTITION_SPLIT_POINTS = "persistCachePartitionSplitPoints";
+	/**
+	 * <p>
+	 * To be used with CACHE_PARTITIONER "range". The number of keys to compute
+	 * split points from.
+	 * <p>
+	 * Default is 100000.
+	 */
+	public static final String CACHE_PARTITION_SAMPLE_SIZE = "persistCachePartitionSampleSize";
+	/**
+	 * <p>
+	 * To be used with the DIHCacheWriter. Set to "true" to write every cache
+	 * partition on a thread of its own. The import thread then only assigns
+	 * documents to partitions and queues them; it waits only if a partition's
+	 * queue is full. Commit and close wait until all queued documents are
+	 * written, and fail if writing any of them failed.
+	 * <p>
+	 * The partitions must be separate caches that can be written concurrently,
+	 * as with BerkleyBackedCache.
+	 * <p>
+	 * Default is "false".
+	 */
+	public static final String CACHE_ASYNC_WRITERS = "persistCacheAsyncWriters";
+	/**
+	 * <p>
+	 * To be used with CACHE_ASYNC_WRITERS. The number of batches that can be
+	 * queued for each partition before the import thread has to wait.
+	 * <p>
+	 * Default is 16.
+	 */
+	public static final String CACHE_WRITER_QUEUE_SIZE = "persistCacheWriterQueueSize";
+	/**
+	 * <p>
+	 * To be used with CACHE_ASYNC_WRITERS. The number of documents (and deletes)
+	 * handed to a partition's writer thread at once.
+	 * <p>
+	 * Default is 256.
+	 */
+	public static final String CACHE_WRITER_BATCH_SIZE = "persistCacheWriterBatchSize";
 	/**
 	 * <p>
 	 * To be used with the DIHCacheProcessor. If set, specifies the cache number
 	 * to access. See CACHE_PARTITIONS for information on creating partitions.
 	 */
 	public static final String PARTITION_NUMBER = "persistCachePartitionNumber";
+	/**
+	 * <p>
+	 * To be used with the DIHCacheProcessor without CACHE_FOREIGN_KEY (a root
+	 * entity that reads the whole cache). If set &gt;1, the cache is divided
+	 * into this many contiguous key ranges of about the same size, and only
+	 * the range given by SPLIT_NUMBER is read. Running one import per split
+	 * number reads the whole cache in parallel, without partitioning it when
+	 * it is written.
+	 * <p>
+	 * Note: This may not be supported by all cache implementations
+	 */
+	public static final String CACHE_SPLITS = "persistCacheSplits";
+	/**
+	 * <p>
+	 * To be used with CACHE_SPLITS. The key range to read, from 0 to
+	 * CACHE_SPLITS - 1.
+	 */
+	public static final String SPLIT_NUMBER = "persistCacheSplitNumber";
+	/**
+	 * <p>
+	 * To be used with the DIHCacheProcessor. Set to "true" if the parent entity
+	 * delivers its rows ordered by the foreign key (CACHE_FOREIGN_KEY). The
+	 * cache is then joined in one forward pass over its keys instead of a
+	 * separate lookup per parent row. Keys that arrive out of order are still
+	 * found, with a regular lookup.
+	 * <p>
+	 * Note: This may not be supported by all cache implementations; others
+	 * ignore it.
+	 * <p>
+	 * Default is "false".
+	 */
+	public static final String CACHE_MERGE_JOIN = "persistCacheMergeJoin";
 	/**
 	 * <p>
 	 * For use with the DIHCacheWriter.
@@ -1,7 +1,9 @@
 package de.medicalcolumbus.platform.solr.dih;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -19,9 +21,33 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 	private Object lastFkValue = null;
 	private Iterator<Map<String, Object>> fullCacheIterator = null;
 	private Iterator<Map<String, Object>> lastFkIterator = null;
+	private BerkleyBackedCache.KeyOrderedLookup keyOrderedLookup = null;
+	// set if whole-number keys can be looked up without boxing
+	private BerkleyBackedCache longKeyCache = null;
+	private DIHCachePartitioner partitioner = null;
+	private int partitionNumber = -1;
+	private long otherPartitionKeys = 0;
+	private int splits = 1;
+	private int splitNumber = 0;
 
 	public void destroy() {
-		cache = null;
+		if (otherPartitionKeys > 0) {
+			LOG.info("Skipped " + otherPartitionKeys + " lookups of keys in other partitions than "
+					+ partitionNumber);
+		}
+		partitioner = null;
+		otherPartitionKeys = 0;
+		if (keyOrderedLookup != null) {
+			keyOrderedLookup.close();
+			keyOrderedLookup = null;
+		}
+		longKeyCache = null;
+		if (cache != null) {
+			// saves the hot keys, gives back the memory budget and the generation
+			cache.close();
+			cache = null;
+		}
+		fullCacheIterator = null;
 		lastFkValue = null;
 		lastFkIterator = null;
 	}
@@ -37,16 +63,30 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 				.getResolvedEntityAttribute(DIHCachePersistProperties.CACHE_FOREIGN_KEY);
 		String cacheName = context
 				.getResolvedEntityAttribute(DIHCachePersistProperties.CACHE_NAME);
+		partitionNumber = -1;
 		try {
 			String partitionNumberStr = context
 					.getResolvedEntityAttribute(DIHCachePersistProperties.PARTITION_NUMBER);
-			int partitionNumber = Integer.parseInt(partitionNumberStr);
-			if (partitionNumber >= 0) {
-				cacheName = cacheName + "-part" + partitionNumber;
-			}
+			partitionNumber = Integer.parseInt(partitionNumberStr);
 		} catch (Exception e) {
 			// do nothing.
 		}
+		if (partitionNumber >= 0) {
+			if (cacheFk != null) {
+				// keys of other partitions can't be in this one, don't look them up
+				File partitionsFile = DIHCacheWriter.getPartitionsFile(
+						context.getResolvedEntityAttribute(DIHCachePersistProperties.CACHE_BASE_DIRECTORY), cacheName);
+				try {
+					partitioner = DIHCacheWriter.loadPartitioner(partitionsFile, context.getSolrCore());
+					if (partitioner != null && !partitioner.isTypeStable()) {
+						partitioner = null;
+					}
+				} catch (Exception e) {
+					LOG.warn("Could not read the partitioning " + partitionsFile + ", looking up every key: " + e);
+				}
+			}
+			cacheName = cacheName + "-part" + partitionNumber;
+		}
 		context.setSessionAttribute(DIHCachePersistProperties.CACHE_NAME, cacheName,
 				Context.SCOPE_ENTITY);
 		context.setSessionAttribute(DIHCachePersistProperties.CACHE_READ_ONLY, "true",
@@ -76,6 +116,37 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 					"Unable to load Cache implementation:" + cacheImplStr, e);
 		}
 
+		splits = 1;
+		String splitsStr = context.getResolvedEntityAttribute(DIHCachePersistProperties.CACHE_SPLITS);
+		if (splitsStr != null && cacheFk == null) {
+			try {
+				splits = Integer.parseInt(splitsStr.trim());
+				splitNumber = Integer.parseInt(String.valueOf(
+						context.getResolvedEntityAttribute(DIHCachePersistProperties.SPLIT_NUMBER)).trim());
+			} catch (NumberFormatException e) {
+				throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+						"Invalid " + DIHCachePersistProperties.CACHE_SPLITS + " / "
+								+ DIHCachePersistProperties.SPLIT_NUMBER, e);
+			}
+			if (splits > 1 && !(cache instanceof BerkleyBackedCache)) {
+				throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+						DIHCachePersistProperties.CACHE_SPLITS + " is not supported by " + cacheImplStr);
+			}
+		}
+
+		if (cache instanceof BerkleyBackedCache && ((BerkleyBackedCache) cache).hasLongKeys()) {
+			longKeyCache = (BerkleyBackedCache) cache;
+		}
+
+		if ("true".equalsIgnoreCase(context.getResolvedEntityAttribute(DIHCachePersistProperties.CACHE_MERGE_JOIN))) {
+			if (cache instanceof BerkleyBackedCache) {
+				keyOrderedLookup = ((BerkleyBackedCache) cache).openKeyOrderedLookup();
+			} else {
+				LOG.warn(DIHCachePersistProperties.CACHE_MERGE_JOIN + " is not supported by " + cacheImplStr
+						+ ", looking up each key for Entity " + context.getEntityAttribute("name"));
+			}
+		}
+
 		LOG.info("Accessing cache of type " + cacheImplStr + " for Entity "
 				+ context.getEntityAttribute("name"));
 	}
@@ -83,7 +154,8 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 	public Map<String, Object> nextRow() {
 		if (cacheFk == null) {
 			if (fullCacheIterator == null) {
-				fullCacheIterator = cache.iterator();
+				fullCacheIterator = splits > 1
+						? ((BerkleyBackedCache) cache).iterator(splitNumber, splits) : cache.iterator();
 			}
 			if (fullCacheIterator.hasNext()) {
 				return fullCacheIterator.next();
@@ -97,9 +169,24 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 			lastFkIterator = null;
 			return null;
 		}
+		if (partitioner != null && !(key instanceof Iterable) && partitioner.getPartition(key) != partitionNumber) {
+			otherPartitionKeys++;
+			lastFkValue = null;
+			lastFkIterator = null;
+			return null;
+		}
 		if (!key.equals(lastFkValue)) {
 			lastFkValue = key;
-			Iterator<Map<String, Object>> valueIter = cache.iterator(key);
+			Iterator<Map<String, Object>> valueIter;
+			if (key instanceof Iterable) {
+				// a multi-valued key is looked up as a batch by the cache itself
+				valueIter = cache.iterator(key);
+			} else if (longKeyCache != null && isWholeNumber(key)) {
+				long longKey = ((Number) key).longValue();
+				valueIter = keyOrderedLookup != null ? keyOrderedLookup.lookup(longKey) : longKeyCache.iterator(longKey);
+			} else {
+				valueIter = keyOrderedLookup != null ? keyOrderedLookup.lookup(key) : cache.iterator(key);
+			}
 			if (valueIter != null) {
 				lastFkIterator = valueIter;
 			}
@@ -111,4 +198,20 @@ public class DIHCacheProcessor extends EntityProcessorBase {
 		lastFkIterator = null;
 		return null;
 	}
+
+	/**
+	 * Returns true if "key" is a whole number that fits a long. A BigDecimal,
+	 * as JDBC drivers return for NUMBER columns, qualifies if it has no
+	 * fraction digits and fewer than 19 digits.
+	 */
+	private static boolean isWholeNumber(Object key) {
+		if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+			return true;
+		}
+		if (key instanceof BigDecimal) {
+			BigDecimal bd = (BigDecimal) key;
+			return bd.scale() == 0 && bd.precision() < 19;
+		}
+		return false;
+	}
 }
\ No newline at end of file
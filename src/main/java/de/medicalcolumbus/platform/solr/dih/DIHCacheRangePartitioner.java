@@ -0,0 +1,143 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.solr.handler.dataimport.CachePropertyUtil;
+import org.apache.solr.handler.dataimport.Context;
+import org.apache.solr.handler.dataimport.DataImportHandlerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Partitions by ranges of the type-normalized key (see
+ * {@link DIHCachePartitionKey}): partition i holds the keys from split point
+ * i - 1 (inclusive) to split point i (exclusive). Each partition is a
+ * contiguous key range, so a partition can be joined in key order.
+ * <p>
+ * The split points are given with
+ * {@link DIHCachePersistProperties#CACHE_PARTITION_SPLIT_POINTS}, or computed
+ * as the quantiles of the first
+ * {@link DIHCachePersistProperties#CACHE_PARTITION_SAMPLE_SIZE} keys of the
+ * import. A sample only represents the data if the documents don't arrive
+ * sorted by key.
+ */
+public class DIHCacheRangePartitioner implements DIHCachePartitioner {
+	private static final Logger LOG = LoggerFactory.getLogger(DIHCacheRangePartitioner.class);
+
+	private static final String PROP_SPLIT_POINT_COUNT = "SPLIT_POINTS";
+	private static final String PROP_SPLIT_POINT = "SPLIT_POINT.";
+	private static final int DEFAULT_SAMPLE_SIZE = 100000;
+
+	private int numPartitions = 1;
+	private int sampleSize = 0;
+	private DIHCachePartitionKey[] splitPoints = null;
+
+	@Override
+	public void init(Context context, int numPartitions) {
+		this.numPartitions = numPartitions;
+		String splitPointsStr = CachePropertyUtil.getAttributeValueAsString(context,
+				DIHCachePersistProperties.CACHE_PARTITION_SPLIT_POINTS);
+		if (splitPointsStr != null) {
+			String[] parts = splitPointsStr.split(",");
+			if (parts.length != numPartitions - 1) {
+				throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+						DIHCachePersistProperties.CACHE_PARTITION_SPLIT_POINTS + " must list "
+								+ (numPartitions - 1) + " keys for " + numPartitions + " partitions: " + splitPointsStr);
+			}
+			DIHCachePartitionKey[] points = new DIHCachePartitionKey[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				points[i] = DIHCachePartitionKey.of(parts[i]);
+			}
+			Arrays.sort(points);
+			splitPoints = points;
+			sampleSize = 0;
+			return;
+		}
+		sampleSize = DEFAULT_SAMPLE_SIZE;
+		String sampleSizeStr = CachePropertyUtil.getAttributeValueAsString(context,
+				DIHCachePersistProperties.CACHE_PARTITION_SAMPLE_SIZE);
+		if (sampleSizeStr != null) {
+			try {
+				sampleSize = Math.max(1, Integer.parseInt(sampleSizeStr.trim()));
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring invalid " + DIHCachePersistProperties.CACHE_PARTITION_SAMPLE_SIZE + ": "
+						+ sampleSizeStr);
+			}
+		}
+	}
+
+	@Override
+	public void load(Properties properties, int numPartitions) {
+		this.numPartitions = numPartitions;
+		String countStr = properties.getProperty(PROP_SPLIT_POINT_COUNT);
+		int count = countStr == null ? -1 : Integer.parseInt(countStr);
+		if (count != numPartitions - 1) {
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"The saved range partitioning has " + count + " split points, not " + (numPartitions - 1));
+		}
+		splitPoints = new DIHCachePartitionKey[count];
+		for (int i = 0; i < count; i++) {
+			splitPoints[i] = DIHCachePartitionKey.of(properties.getProperty(PROP_SPLIT_POINT + i));
+		}
+		sampleSize = 0;
+	}
+
+	@Override
+	public void save(Properties properties) {
+		properties.setProperty(PROP_SPLIT_POINT_COUNT, Integer.toString(splitPoints.length));
+		for (int i = 0; i < splitPoints.length; i++) {
+			properties.setProperty(PROP_SPLIT_POINT + i, splitPoints[i].canonical());
+		}
+	}
+
+	@Override
+	public int getSampleSize() {
+		return splitPoints == null ? sampleSize : 0;
+	}
+
+	@Override
+	public void sample(List<Object> keys) {
+		List<DIHCachePartitionKey> sorted = new ArrayList<DIHCachePartitionKey>(keys.size());
+		for (Object key : keys) {
+			sorted.add(DIHCachePartitionKey.of(key));
+		}
+		Collections.sort(sorted);
+		DIHCachePartitionKey[] points = new DIHCachePartitionKey[numPartitions - 1];
+		for (int i = 1; i < numPartitions; i++) {
+			points[i - 1] = sorted.isEmpty()
+					? DIHCachePartitionKey.of(Integer.toString(i))
+					: sorted.get((int) ((long) i * sorted.size() / numPartitions));
+		}
+		splitPoints = points;
+		LOG.info("Range partition split points from a sample of " + keys.size() + " keys: " + Arrays.asList(points));
+	}
+
+	@Override
+	public int getPartition(Object key) {
+		if (splitPoints == null) {
+			throw new IllegalStateException("The range partitioner has no split points yet");
+		}
+		DIHCachePartitionKey k = DIHCachePartitionKey.of(key);
+		// the number of split points <= key
+		int lo = 0;
+		int hi = splitPoints.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (splitPoints[mid].compareTo(k) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	@Override
+	public boolean isTypeStable() {
+		return true;
+	}
+}
@@ -1,11 +1,23 @@
 package de.medicalcolumbus.platform.solr.dih;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
@@ -18,9 +30,42 @@ public class DIHCacheWriter implements DIHWriter {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(DIHCacheWriter.class);
 
+	private static final int DEFAULT_WRITER_QUEUE_SIZE = 16;
+	private static final int DEFAULT_WRITER_BATCH_SIZE = 256;
+	private static final int KEY_LOCK_STRIPES = 64;
+	private static final String PARTITIONS_FILE_SUFFIX = "_partitions.properties";
+	private static final String PROP_PARTITIONER = "PARTITIONER";
+	private static final String PROP_PARTITIONS = "PARTITIONS";
+
 	private DIHCache[] caches;
-	private String keyFieldName;
-	private Set<Object> deltaKeys = null;
+	private DIHCachePartitionWriter[] writers = null;
+	private DIHCachePartitioner partitioner;
+	private File partitionsFile = null;
+	private LongAdder[] partitionSizes;
+	/*
+	 * While the partitioner samples keys, documents and deletes are held back
+	 * here, in arrival order: {key, record} for an upload, {key, null} for a
+	 * delete.
+	 */
+	private final Object samplingLock = new Object();
+	private volatile boolean sampling = false;
+	private List<Object[]> heldBack = null;
+	private List<Object> sampleKeys = null;
+	// the primary key attribute, or else the first field of the first document
+	private volatile String keyFieldName;
+	private volatile Set<Object> deltaKeys = null;
+	/*
+	 * upload() and deleteDoc() may be called by several DIH threads at once.
+	 * The delete-then-add of a delta key runs under the lock of the key's
+	 * stripe, so a concurrent upload of the same key can't slip in between.
+	 */
+	private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+
+	public DIHCacheWriter() {
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
+	}
 
 	public void init(Context context) {
 		String cacheImplStr = CachePropertyUtil.getAttributeValueAsString(context,
@@ -59,6 +104,188 @@ public class DIHCacheWriter implements DIHWriter {
 				caches[i] = instantiateCache(cacheImplStr, context);
 			}
 		}
+		partitionSizes = new LongAdder[numParts];
+		for (int i = 0; i < numParts; i++) {
+			partitionSizes[i] = new LongAdder();
+		}
+		partitioner = createPartitioner(CachePropertyUtil.getAttributeValueAsString(context,
+				DIHCachePersistProperties.CACHE_PARTITIONER), context.getSolrCore());
+		partitioner.init(context, numParts);
+		if (numParts > 1) {
+			String baseDir = CachePropertyUtil.getAttributeValueAsString(context,
+					DIHCachePersistProperties.CACHE_BASE_DIRECTORY);
+			partitionsFile = getPartitionsFile(baseDir, String.valueOf(CachePropertyUtil.getAttributeValue(context,
+					DIHCachePersistProperties.CACHE_NAME)));
+			if (partitioner.getSampleSize() > 0) {
+				heldBack = new ArrayList<Object[]>();
+				sampleKeys = new ArrayList<Object>();
+				sampling = true;
+			} else {
+				savePartitioning();
+			}
+		}
+		if ("true".equalsIgnoreCase(CachePropertyUtil.getAttributeValueAsString(context,
+				DIHCachePersistProperties.CACHE_ASYNC_WRITERS))) {
+			int queueSize = getIntAttribute(context, DIHCachePersistProperties.CACHE_WRITER_QUEUE_SIZE,
+					DEFAULT_WRITER_QUEUE_SIZE);
+			int batchSize = getIntAttribute(context, DIHCachePersistProperties.CACHE_WRITER_BATCH_SIZE,
+					DEFAULT_WRITER_BATCH_SIZE);
+			String name = String.valueOf(CachePropertyUtil.getAttributeValue(context,
+					DIHCachePersistProperties.CACHE_NAME));
+			writers = new DIHCachePartitionWriter[numParts];
+			for (int i = 0; i < numParts; i++) {
+				writers[i] = new DIHCachePartitionWriter(caches[i], i, name, queueSize, batchSize);
+			}
+			LOG.info("Writing " + numParts + " cache partition(s) asynchronously, queues of " + queueSize
+					+ " batches of " + batchSize + " operations.");
+		}
+	}
+
+	/**
+	 * Returns a new partitioner: "hash", "range", a class name, or the legacy
+	 * partitioner if "name" is null.
+	 */
+	@SuppressWarnings("unchecked")
+	static DIHCachePartitioner createPartitioner(String name, SolrCore core) {
+		if (name == null || "legacy".equalsIgnoreCase(name)) {
+			return new DIHCacheLegacyPartitioner();
+		}
+		if ("hash".equalsIgnoreCase(name)) {
+			return new DIHCacheHashPartitioner();
+		}
+		if ("range".equalsIgnoreCase(name)) {
+			return new DIHCacheRangePartitioner();
+		}
+		try {
+			Method docBuilderLoadClassMethod = DocBuilder.class.getDeclaredMethod("loadClass", String.class, SolrCore.class);
+			docBuilderLoadClassMethod.setAccessible(true);
+			Class<DIHCachePartitioner> partitionerClass = (Class<DIHCachePartitioner>) docBuilderLoadClassMethod.invoke(null, name, core);
+			return partitionerClass.getConstructor().newInstance();
+		} catch (Exception e) {
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"Unable to load Partitioner implementation:" + name, e);
+		}
+	}
+
+	/**
+	 * The file the partitioning of the partitioned cache "cacheName" is saved
+	 * in, next to its partitions.
+	 */
+	static File getPartitionsFile(String baseDir, String cacheName) {
+		if (baseDir == null) {
+			baseDir = System.getProperty("java.io.tmpdir");
+		}
+		return new File(baseDir + File.separator + cacheName + PARTITIONS_FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the partitioner saved in "file", or null if there is no such
+	 * file.
+	 */
+	static DIHCachePartitioner loadPartitioner(File file, SolrCore core) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		Reader r = new FileReader(file);
+		try {
+			props.load(r);
+		} finally {
+			r.close();
+		}
+		DIHCachePartitioner loaded = createPartitioner(props.getProperty(PROP_PARTITIONER), core);
+		loaded.load(props, Integer.parseInt(props.getProperty(PROP_PARTITIONS)));
+		return loaded;
+	}
+
+	private void savePartitioning() {
+		Properties props = new Properties();
+		props.setProperty(PROP_PARTITIONER, partitioner.getClass().getName());
+		props.setProperty(PROP_PARTITIONS, Integer.toString(caches.length));
+		partitioner.save(props);
+		try {
+			Writer w = new FileWriter(partitionsFile);
+			try {
+				props.store(w, "");
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			throw new DataImportHandlerException(DataImportHandlerException.SEVERE,
+					"Could not write the partitioning to " + partitionsFile, e);
+		}
+	}
+
+	/**
+	 * Hands the keys seen so far to the partitioner, then writes the documents
+	 * and deletes held back meanwhile. Sampling only ends once they are
+	 * written, so concurrent callers keep queueing behind them and every key's
+	 * operations stay in order.
+	 */
+	private void finishSampling() {
+		if (!sampling) {
+			return;
+		}
+		synchronized (samplingLock) {
+			if (!sampling) {
+				return;
+			}
+			partitioner.sample(sampleKeys);
+			savePartitioning();
+			for (Object[] op : heldBack) {
+				if (op[1] == null) {
+					delete(op[0]);
+				} else {
+					@SuppressWarnings("unchecked")
+					Map<String, Object> rec = (Map<String, Object>) op[1];
+					write(op[0], rec);
+				}
+			}
+			heldBack = null;
+			sampleKeys = null;
+			sampling = false;
+		}
+	}
+
+	/**
+	 * Holds "op" back if the partitioner is still sampling keys, and returns
+	 * whether it did.
+	 */
+	private boolean holdBack(Object[] op) {
+		if (!sampling) {
+			return false;
+		}
+		boolean full;
+		synchronized (samplingLock) {
+			if (!sampling) {
+				return false;
+			}
+			heldBack.add(op);
+			if (op[1] != null) {
+				sampleKeys.add(op[0]);
+			}
+			full = sampleKeys.size() >= partitioner.getSampleSize();
+		}
+		if (full) {
+			finishSampling();
+		}
+		return true;
+	}
+
+	private static int getIntAttribute(Context context, String name, int defaultValue) {
+		String value = CachePropertyUtil.getAttributeValueAsString(context, name);
+		if (value != null) {
+			try {
+				int i = Integer.parseInt(value.trim());
+				if (i > 0) {
+					return i;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			LOG.warn("Ignoring invalid " + name + ": " + value);
+		}
+		return defaultValue;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -86,6 +313,17 @@ public class DIHCacheWriter implements DIHWriter {
 
 	@Override
 	public void commit(boolean optimize) {
+		finishSampling();
+		if (writers != null) {
+			// flush all partitions in parallel
+			for (DIHCachePartitionWriter writer : writers) {
+				writer.startFlush();
+			}
+			for (DIHCachePartitionWriter writer : writers) {
+				writer.awaitFlush();
+			}
+			return;
+		}
 		for (DIHCache cache : caches) {
 			cache.flush();
 		}
@@ -98,18 +336,46 @@ public class DIHCacheWriter implements DIHWriter {
 
 	}
 
-	private int getPartitionForKey(Object key) {
-		return Math.abs(key.hashCode() % caches.length);
+	private Object keyLock(Object key) {
+		int h = key.hashCode();
+		return keyLocks[(h ^ (h >>> 16)) & (keyLocks.length - 1)];
+	}
 
+	private int getPartitionForKey(Object key) {
+		return caches.length == 1 ? 0 : partitioner.getPartition(key);
 	}
 
 	@Override
 	public void deleteDoc(Object key) {
+		if (!holdBack(new Object[] {key, null})) {
+			delete(key);
+		}
+	}
+
+	private void delete(Object key) {
+		if (writers != null) {
+			writers[getPartitionForKey(key)].delete(key);
+			return;
+		}
 		caches[getPartitionForKey(key)].delete(key);
 	}
 
 	@Override
 	public void doDeleteAll() {
+		if (sampling) {
+			synchronized (samplingLock) {
+				if (heldBack != null) {
+					// the keys stay in the sample, they are still typical keys
+					heldBack.clear();
+				}
+			}
+		}
+		if (writers != null) {
+			for (DIHCachePartitionWriter writer : writers) {
+				writer.deleteAll();
+			}
+			return;
+		}
 		for (DIHCache cache : caches) {
 			cache.deleteAll();
 		}
@@ -122,21 +388,49 @@ public class DIHCacheWriter implements DIHWriter {
 
 	@Override
 	public void close() {
+		finishSampling();
+		if (caches.length > 1) {
+			long total = 0;
+			long max = 0;
+			long[] sizes = new long[caches.length];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = partitionSizes[i].sum();
+				total += sizes[i];
+				max = Math.max(max, sizes[i]);
+			}
+			LOG.info("Documents per partition (" + partitioner.getClass().getSimpleName() + "): "
+					+ Arrays.toString(sizes) + ", largest/average: "
+					+ (total == 0 ? "-" : String.format("%.2f", (double) max * sizes.length / total)));
+		}
+		RuntimeException failure = null;
+		if (writers != null) {
+			for (DIHCachePartitionWriter writer : writers) {
+				try {
+					writer.close();
+					LOG.info("Async cache writer " + writer.getStats());
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
 		for (DIHCache cache : caches) {
 			cache.close();
 		}
+		if (failure != null) {
+			throw failure;
+		}
 	}
 
 	@Override
 	public boolean upload(SolrInputDocument doc) {
 		Map<String, Object> rec = new HashMap<String, Object>();
 		Object keyObj = null;
+		String keyField = getKeyFieldName(doc);
 		for (SolrInputField field : doc) {
 			rec.put(field.getName(), field.getValues());
-			if (keyFieldName == null) {
-				keyFieldName = field.getName();
-			}
-			if (keyFieldName.equals(field.getName())) {
+			if (field.getName().equals(keyField)) {
 				keyObj = field.getFirstValue();
 			}
 		}
@@ -144,21 +438,59 @@ public class DIHCacheWriter implements DIHWriter {
 			LOG.warn("Tried to add a document with a null key.");
 			return false;
 		}
+		if (!holdBack(new Object[] {keyObj, rec})) {
+			write(keyObj, rec);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the name of the key field, which is the first field of the first
+	 * document if no primary key is configured.
+	 */
+	private String getKeyFieldName(SolrInputDocument doc) {
+		String name = keyFieldName;
+		if (name == null) {
+			synchronized (keyLocks) {
+				if (keyFieldName == null && !doc.isEmpty()) {
+					keyFieldName = doc.iterator().next().getName();
+				}
+				name = keyFieldName;
+			}
+		}
+		return name;
+	}
+
+	private void write(Object keyObj, Map<String, Object> rec) {
+		int partition = getPartitionForKey(keyObj);
+		partitionSizes[partition].increment();
+		Set<Object> delta = deltaKeys;
+		if (writers != null) {
+			// failures of the writer threads are already DataImportHandlerExceptions
+			synchronized (keyLock(keyObj)) {
+				if (delta != null && delta.remove(keyObj)) {
+					delete(keyObj);
+				}
+				writers[partition].add(rec);
+			}
+			return;
+		}
 		try {
-			if (deltaKeys != null && deltaKeys.remove(keyObj)) {
-				deleteDoc(keyObj);
+			synchronized (keyLock(keyObj)) {
+				if (delta != null && delta.remove(keyObj)) {
+					delete(keyObj);
+				}
+				caches[partition].add(rec);
 			}
-			caches[getPartitionForKey(keyObj)].add(rec);
 		} catch (Exception e) {
 			throw new RuntimeException("Key=" + keyObj + " mod="
-					+ getPartitionForKey(keyObj));
+					+ partition);
 		}
-		return true;
 	}
 
 	@Override
 	public void setDeltaKeys(Set<Map<String, Object>> passedInDeltaKeys) {
-		deltaKeys = new HashSet<Object>();
+		Set<Object> delta = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
 		for (Map<String, Object> aMap : passedInDeltaKeys) {
 			if (aMap.size() > 0) {
 				Object key = null;
@@ -168,9 +500,10 @@ public class DIHCacheWriter implements DIHWriter {
 					key = aMap.entrySet().iterator().next();
 				}
 				if (key != null) {
-					deltaKeys.add(key);
+					delta.add(key);
 				}
 			}
 		}
+		deltaKeys = delta;
 	}
 }
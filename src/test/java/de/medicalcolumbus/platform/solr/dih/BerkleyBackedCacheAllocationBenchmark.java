@@ -0,0 +1,105 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+
+/**
+ * Measures the bytes allocated per added and per looked-up row of a
+ * BerkleyBackedCache, in list and in append storage, with the per-thread
+ * allocation counter of {@link com.sun.management.ThreadMXBean}.
+ * <p>
+ * 200000 rows of 8 columns are added under 50000 keys, and then every key is
+ * looked up once, reading 3 columns of each row. Each storage is measured
+ * twice in the same JVM; the second round is the one without class loading
+ * and JIT warm-up.
+ * <p>
+ * Run with the test classpath on a HotSpot JVM:
+ * <pre>
+ * java de.medicalcolumbus.platform.solr.dih.BerkleyBackedCacheAllocationBenchmark
+ * </pre>
+ */
+public class BerkleyBackedCacheAllocationBenchmark {
+	private static final int ROWS = 200000;
+	private static final int KEYS = 50000;
+	private static final String[] LOCALES = { "de", "en", "fr" };
+
+	public static void main(String[] args) throws Exception {
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("This JVM doesn't count allocated bytes per thread.");
+			return;
+		}
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("ID", i % KEYS);
+			row.put("NAME", "product name " + i);
+			row.put("LOCALE", LOCALES[i % LOCALES.length]);
+			row.put("D", new Date(1500000000000L + i));
+			row.put("BD", new BigDecimal(i).movePointLeft(2));
+			row.put("L", (long) i);
+			row.put("QTY", i % 17);
+			row.put("FLAG", "Y");
+			rows.add(row);
+		}
+		for (boolean appendDuplicates : new boolean[] { false, true }) {
+			for (int round = 1; round <= 2; round++) {
+				File baseDir = Files.createTempDirectory("berkley-allocation").toFile();
+				try {
+					run((com.sun.management.ThreadMXBean) mx, baseDir, appendDuplicates, round, rows);
+				} finally {
+					BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+				}
+			}
+		}
+	}
+
+	private static void run(com.sun.management.ThreadMXBean mx, File baseDir, boolean appendDuplicates, int round,
+			List<Map<String, Object>> rows) {
+		long thread = Thread.currentThread().getId();
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "allocation")
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,NAME,LOCALE,D,BD,L,QTY,FLAG")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING,STRING,DATE,BIGDECIMAL,LONG,INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_APPEND_DUPLICATES, Boolean.toString(appendDuplicates));
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+
+		long addStart = mx.getThreadAllocatedBytes(thread);
+		for (Map<String, Object> row : rows) {
+			cache.add(row);
+		}
+		long addBytes = mx.getThreadAllocatedBytes(thread) - addStart;
+		cache.flush();
+
+		long lookedUp = 0;
+		long lookupStart = mx.getThreadAllocatedBytes(thread);
+		for (int key = 0; key < KEYS; key++) {
+			Iterator<Map<String, Object>> found = cache.iterator(key);
+			while (found != null && found.hasNext()) {
+				Map<String, Object> row = found.next();
+				row.get("LOCALE");
+				row.get("FLAG");
+				row.get("QTY");
+				lookedUp++;
+			}
+		}
+		long lookupBytes = mx.getThreadAllocatedBytes(thread) - lookupStart;
+		cache.close();
+
+		System.out.printf("%s storage, round %d: add %d B/row, lookup %d B/row (%d rows)%n",
+				appendDuplicates ? "append" : "list", round, addBytes / rows.size(), lookupBytes / lookedUp, lookedUp);
+	}
+}
@@ -0,0 +1,135 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The rows a {@link BerkleyBackedCache#BERKLEY_BULK_LOAD} cache holds after
+ * its sorted runs are merged: every key with all of its rows, in the order
+ * they were added.
+ */
+public class BerkleyBackedCacheBulkLoadTest {
+	private static final int KEYS = 1000;
+	private static final int ROWS = 5000;
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-bulk-load").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void mergedRunsKeepTheOrderOfEachKeysRows() {
+		assertBulkLoad(false);
+	}
+
+	@Test
+	public void mergedRunsKeepTheOrderOfEachKeysRowsWhenAppended() {
+		assertBulkLoad(true);
+	}
+
+	@Test
+	public void aFlushMergesIntoTheRowsLoadedBefore() {
+		BerkleyBackedCache cache = open(false, false);
+		Map<Integer, List<Object>> expected = new TreeMap<Integer, List<Object>>();
+		for (int i = 0; i < ROWS; i++) {
+			add(cache, i, expected);
+			if (i == ROWS / 2) {
+				cache.flush();
+			}
+		}
+		cache.close();
+		assertRows(expected);
+	}
+
+	private void assertBulkLoad(boolean appendDuplicates) {
+		BerkleyBackedCache cache = open(false, appendDuplicates);
+		Map<Integer, List<Object>> expected = new TreeMap<Integer, List<Object>>();
+		for (int i = 0; i < ROWS; i++) {
+			add(cache, i, expected);
+		}
+		cache.close();
+		assertRows(expected);
+	}
+
+	private void add(BerkleyBackedCache cache, int i, Map<Integer, List<Object>> expected) {
+		// keys in scattered order, so each run holds rows of most keys
+		int key = (int) ((i * 7919L) % KEYS) - KEYS / 2;
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("V", "row " + i);
+		cache.add(row);
+		List<Object> values = expected.get(key);
+		if (values == null) {
+			values = new ArrayList<Object>();
+			expected.put(key, values);
+		}
+		values.add("row " + i);
+	}
+
+	private void assertRows(Map<Integer, List<Object>> expected) {
+		BerkleyBackedCache cache = open(true, false);
+		Map<Integer, List<Object>> scanned = new TreeMap<Integer, List<Object>>();
+		List<Object> scanOrder = new ArrayList<Object>();
+		Iterator<Map<String, Object>> rows = cache.iterator();
+		while (rows.hasNext()) {
+			Map<String, Object> row = rows.next();
+			Integer key = (Integer) row.get("ID");
+			if (!scanned.containsKey(key)) {
+				scanned.put(key, new ArrayList<Object>());
+				scanOrder.add(key);
+			}
+			scanned.get(key).add(row.get("V"));
+		}
+		assertEquals(new ArrayList<Object>(expected.keySet()), scanOrder);
+		assertEquals(expected, scanned);
+		for (int key : expected.keySet()) {
+			List<Object> values = new ArrayList<Object>();
+			Iterator<Map<String, Object>> found = cache.iterator(key);
+			while (found.hasNext()) {
+				values.add(found.next().get("V"));
+			}
+			assertEquals("key " + key, expected.get(key), values);
+		}
+		cache.close();
+	}
+
+	private BerkleyBackedCache open(boolean readOnly, boolean appendDuplicates) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "bulk")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_APPEND_DUPLICATES, Boolean.toString(appendDuplicates));
+		if (!readOnly) {
+			// a few hundred rows per run
+			context.set(BerkleyBackedCache.BERKLEY_BULK_LOAD, "true")
+					.set(BerkleyBackedCache.BERKLEY_BULK_LOAD_BUFFER_SIZE, "8192");
+		}
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+}
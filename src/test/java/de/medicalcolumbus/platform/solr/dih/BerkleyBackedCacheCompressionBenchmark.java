@@ -0,0 +1,125 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+
+/**
+ * Measures the disk size and lookup latency of a cache of product
+ * descriptions with and without {@link BerkleyBackedCache#BERKLEY_COMPRESSION_THRESHOLD}.
+ * <p>
+ * Every key has a German and an English row. A description is 2 to 6
+ * paragraphs of "product-descriptions.txt", picked at random, followed by an
+ * article number. A lookup pass reads the descriptions of all keys in a
+ * scattered order; the best of 5 passes is reported.
+ * <p>
+ * Run with the test classpath:
+ * <pre>
+ * java de.medicalcolumbus.platform.solr.dih.BerkleyBackedCacheCompressionBenchmark [keys] [thresholds]
+ * </pre>
+ * "keys" defaults to 20000, "thresholds" to "0,1024,256", where 0 means no
+ * compression.
+ */
+public class BerkleyBackedCacheCompressionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		String thresholds = args.length > 1 ? args[1] : "0,1024,256";
+		List<String> paragraphs = readParagraphs();
+		for (String threshold : thresholds.split(",")) {
+			File baseDir = Files.createTempDirectory("berkley-compression").toFile();
+			try {
+				run(baseDir, keys, Integer.parseInt(threshold.trim()), paragraphs);
+			} finally {
+				BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+			}
+		}
+	}
+
+	private static void run(File baseDir, int keys, int threshold, List<String> paragraphs) {
+		Random random = new Random(7);
+		BerkleyBackedCache cache = open(baseDir, threshold, false);
+		for (int i = 0; i < keys * 2; i++) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("ID", i % keys);
+			row.put("LOCALE", i < keys ? "de" : "en");
+			row.put("TITLE", "Article " + (100000 + i % keys));
+			StringBuilder description = new StringBuilder();
+			for (int p = 2 + random.nextInt(5); p > 0; p--) {
+				description.append(paragraphs.get(random.nextInt(paragraphs.size()))).append('\n');
+			}
+			description.append("Article number ").append(100000 + i % keys).append('.');
+			row.put("DESCRIPTION", description.toString());
+			cache.add(row);
+		}
+		cache.close();
+		long diskBytes = 0;
+		for (File file : new File(baseDir, "descriptions").listFiles()) {
+			if (file.getName().endsWith(".jdb")) {
+				diskBytes += file.length();
+			}
+		}
+
+		cache = open(baseDir, threshold, true);
+		long best = Long.MAX_VALUE;
+		long chars = 0;
+		for (int pass = 0; pass < 5; pass++) {
+			long start = System.nanoTime();
+			for (int k = 0; k < keys; k++) {
+				Iterator<Map<String, Object>> rows = cache.iterator((int) ((k * 7919L) % keys));
+				while (rows.hasNext()) {
+					chars += ((String) rows.next().get("DESCRIPTION")).length();
+				}
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		cache.close();
+		System.out.printf("threshold %5d: %,d jdb bytes, %.1f us/key (%,d chars read)%n",
+				threshold, diskBytes, best / 1000.0 / keys, chars);
+	}
+
+	private static BerkleyBackedCache open(File baseDir, int threshold, boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "descriptions")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,TITLE,DESCRIPTION,LOCALE")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING,STRING,STRING");
+		if (threshold > 0) {
+			context.set(BerkleyBackedCache.BERKLEY_COMPRESSION_THRESHOLD, Integer.toString(threshold));
+		}
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static List<String> readParagraphs() throws IOException {
+		List<String> paragraphs = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				BerkleyBackedCacheCompressionBenchmark.class.getResourceAsStream("/product-descriptions.txt"),
+				StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					paragraphs.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return paragraphs;
+	}
+}
@@ -0,0 +1,157 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Many producer threads write a {@link BerkleyBackedCache} at once; the rows
+ * must be the same as those of a single-threaded build. Every key belongs to
+ * one producer, so its rows have one order, while the producers' keys
+ * interleave.
+ */
+public class BerkleyBackedCacheConcurrencyTest {
+	private static final int KEYS = 3000;
+	private static final int THREADS = 8;
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-concurrency").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(baseDir);
+	}
+
+	@Test
+	public void listStorage() throws Exception {
+		assertSameAsSingleThreaded(false);
+	}
+
+	@Test
+	public void appendStorage() throws Exception {
+		assertSameAsSingleThreaded(false, BerkleyBackedCache.BERKLEY_APPEND_DUPLICATES, "true");
+	}
+
+	@Test
+	public void deltaWithChangedKeys() throws Exception {
+		assertSameAsSingleThreaded(true, DIHCachePersistProperties.CACHE_DELTA_WITH_FULL_UPDATE_NO_CLEAN, "true");
+	}
+
+	@Test
+	public void noDuplicateKeys() throws Exception {
+		assertSameAsSingleThreaded(false, DIHCachePersistProperties.CACHE_NO_DUPLICATE_KEYS, "true");
+	}
+
+	private void assertSameAsSingleThreaded(boolean priorData, String... options) throws Exception {
+		String expected = build("single", 1, priorData, options);
+		for (int run = 0; run < 3; run++) {
+			assertEquals("run " + run, expected, build("multi" + run, THREADS, priorData, options));
+		}
+	}
+
+	/**
+	 * Builds cache "name" with "threads" producers and returns its rows, one
+	 * per line.
+	 */
+	private String build(String name, final int threads, boolean priorData, String... options) throws Exception {
+		if (priorData) {
+			BerkleyBackedCache prior = open(name);
+			for (int k = 0; k < KEYS; k += 2) {
+				prior.add(row(k, -1));
+			}
+			prior.close();
+		}
+		final BerkleyBackedCache cache = open(name, options);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> producers = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int producer = t;
+				producers.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int pass = 0; pass < 3; pass++) {
+							for (int k = 0; k < KEYS; k++) {
+								if (Math.floorMod(("k" + k).hashCode() * 31 + 7, threads) != producer) {
+									continue;
+								}
+								if (pass == 1 && k % 11 == 0) {
+									cache.delete("k" + k);
+								} else if (k % 3 != 0 || pass == 0) {
+									cache.add(row(k, pass));
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> f : producers) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		cache.flush();
+		StringBuilder rows = new StringBuilder();
+		Iterator<Map<String, Object>> it = cache.iterator();
+		while (it != null && it.hasNext()) {
+			rows.append(new TreeMap<String, Object>(it.next())).append('\n');
+		}
+		cache.close();
+		return rows.toString();
+	}
+
+	private BerkleyBackedCache open(String name, String... options) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, name)
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V,N,C")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "STRING,STRING,INTEGER,STRING");
+		for (int i = 0; i < options.length; i += 2) {
+			context.set(options[i], options[i + 1]);
+		}
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(int k, int pass) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", "k" + k);
+		row.put("V", "v" + k + "-" + pass);
+		row.put("N", pass);
+		row.put("C", "c" + (k % 5));
+		return row;
+	}
+
+	static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
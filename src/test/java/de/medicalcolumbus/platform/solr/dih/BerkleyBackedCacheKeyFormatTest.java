@@ -0,0 +1,134 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The primary key values a cache returns, and the key order it scans in, for
+ * both key formats of {@link BerkleyBackedCache#BERKLEY_KEY_FORMAT}.
+ */
+public class BerkleyBackedCacheKeyFormatTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-key-format").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void bigDecimalKeysRoundTripByDefault() {
+		BerkleyBackedCache cache = build("BIGDECIMAL", null, new BigDecimal("100"), new BigDecimal("1.00"),
+				new BigDecimal("-2500"));
+		assertKey(cache, new BigDecimal("100"), "100");
+		assertKey(cache, new BigDecimal("1.00"), "1.00");
+		assertKey(cache, new BigDecimal("-2500"), "-2500");
+		cache.close();
+	}
+
+	@Test
+	public void bigDecimalKeysOfFormat2AreNormalized() {
+		BerkleyBackedCache cache = build("BIGDECIMAL", "2", new BigDecimal("100"), new BigDecimal("1.00"),
+				new BigDecimal("-2500"));
+		assertKey(cache, new BigDecimal("100"), "100");
+		assertKey(cache, new BigDecimal("1.00"), "1");
+		assertKey(cache, new BigDecimal("1.0"), "1");
+		assertKey(cache, new BigDecimal("-2500"), "-2500");
+		assertEquals("[-2500, 1, 100]", keys(cache.iterator()).toString());
+		cache.close();
+	}
+
+	@Test
+	public void doubleKeysScanInOrderByDefault() {
+		BerkleyBackedCache cache = build("DOUBLE", null, 2.5, -10.0, 0.0, -0.5, 1e9);
+		assertEquals("[-10.0, -0.5, 0.0, 2.5, 1.0E9]", keys(cache.iterator()).toString());
+		assertEquals("[-0.5, 0.0]", keys(cache.rangeIterator(-1.0, 2.5)).toString());
+		cache.close();
+	}
+
+	@Test
+	public void longKeysFindTheRowsOfTheirBoxedValues() {
+		long[] keys = { 0, -1, 1, 42, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE + 1L,
+				Long.MAX_VALUE, Long.MIN_VALUE };
+		BerkleyBackedCache cache = build("LONG", null, 0L, -1L, 42L, (long) Integer.MIN_VALUE,
+				Integer.MAX_VALUE + 1L, Long.MAX_VALUE);
+		assertEquals(true, cache.hasLongKeys());
+		for (long key : keys) {
+			assertEquals("key " + key, keys(cache.iterator((Object) key)), keys(cache.iterator(key)));
+		}
+		cache.close();
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+		cache = build("INTEGER", null, 0, -1, 42, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		BerkleyBackedCache.KeyOrderedLookup lookup = cache.openKeyOrderedLookup();
+		for (long key : keys) {
+			// a key outside the int range has no rows
+			List<Object> expected = (int) key == key ? keys(cache.iterator((Object) (int) key)) : keys(null);
+			assertEquals("key " + key, expected, keys(cache.iterator(key)));
+			assertEquals("key " + key, expected, keys(lookup.lookup(key)));
+		}
+		lookup.close();
+		cache.close();
+	}
+
+	/**
+	 * Builds a cache of one row per key, and reopens it read-only.
+	 */
+	private BerkleyBackedCache build(String keyType, String keyFormat, Object... keys) {
+		BerkleyBackedCache cache = open(keyType, keyFormat, false);
+		for (Object key : keys) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("ID", key);
+			row.put("V", "v" + key);
+			cache.add(row);
+		}
+		cache.close();
+		return open(keyType, keyFormat, true);
+	}
+
+	private BerkleyBackedCache open(String keyType, String keyFormat, boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "keys")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, keyType + ",STRING");
+		if (keyFormat != null) {
+			context.set(BerkleyBackedCache.BERKLEY_KEY_FORMAT, keyFormat);
+		}
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static void assertKey(BerkleyBackedCache cache, Object key, String expected) {
+		Iterator<Map<String, Object>> rows = cache.iterator(key);
+		assertEquals(expected, rows.next().get("ID").toString());
+	}
+
+	private static List<Object> keys(Iterator<Map<String, Object>> rows) {
+		List<Object> keys = new ArrayList<Object>();
+		while (rows != null && rows.hasNext()) {
+			keys.add(rows.next().get("ID"));
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,100 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Key-ordered lookups return the same rows as point lookups, for keys with
+ * several rows, keys without rows and keys that arrive out of order.
+ */
+public class BerkleyBackedCacheKeyOrderedLookupTest {
+	private static final int KEYS = 2000;
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-key-ordered").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void listStorage() {
+		check(false);
+	}
+
+	@Test
+	public void appendStorage() {
+		check(true);
+	}
+
+	private void check(boolean appendDuplicates) {
+		BerkleyBackedCache cache = open(appendDuplicates, false);
+		// every third key has no rows, every fourth has three
+		for (int i = 0; i < KEYS; i++) {
+			for (int j = 0; i % 3 != 1 && j < (i % 4 == 0 ? 3 : 1); j++) {
+				Map<String, Object> row = new HashMap<String, Object>();
+				row.put("ID", i);
+				row.put("V", i + "-" + j);
+				cache.add(row);
+			}
+		}
+		cache.close();
+		cache = open(appendDuplicates, true);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = -3; i < KEYS + 3; i += 1 + (i + 3) % 3) {
+			keys.add(i);
+			if (i % 7 == 0) {
+				keys.add(i);
+			}
+			if (i % 101 == 0) {
+				keys.add(i / 2);
+			}
+		}
+		BerkleyBackedCache.KeyOrderedLookup lookup = cache.openKeyOrderedLookup();
+		for (int key : keys) {
+			assertEquals("key " + key, values(cache.iterator(key)), values(lookup.lookup(key)));
+		}
+		lookup.close();
+		cache.close();
+	}
+
+	private BerkleyBackedCache open(boolean appendDuplicates, boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "ordered")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_APPEND_DUPLICATES, Boolean.toString(appendDuplicates));
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static List<Object> values(Iterator<Map<String, Object>> rows) {
+		List<Object> values = new ArrayList<Object>();
+		while (rows != null && rows.hasNext()) {
+			values.add(rows.next().get("V"));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,164 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+
+/**
+ * Compares lookups of whole-number keys boxed, through
+ * {@link BerkleyBackedCache#iterator(Object)}, with lookups through
+ * {@link BerkleyBackedCache#iterator(long)}, for INTEGER, LONG and
+ * BIGDECIMAL_INTEGER primary keys.
+ * <p>
+ * The cache holds 300000 records. A point pass looks up 1000000 random keys,
+ * of which about 75% exist. A join pass looks up the same keys in ascending
+ * order through a {@link BerkleyBackedCache.KeyOrderedLookup}, as a parent
+ * entity ordered by its foreign key does. Every pass is run 4 times; the
+ * first round includes JIT warm-up. Bytes allocated per lookup are counted
+ * with {@link com.sun.management.ThreadMXBean} where available.
+ * <p>
+ * Run with the test classpath:
+ * <pre>
+ * java de.medicalcolumbus.platform.solr.dih.BerkleyBackedCacheLongKeyBenchmark [types]
+ * </pre>
+ * "types" defaults to "INTEGER,LONG,BIGDECIMAL_INTEGER".
+ */
+public class BerkleyBackedCacheLongKeyBenchmark {
+	private static final int RECORDS = 300000;
+	private static final int LOOKUPS = 1000000;
+	private static final int ROUNDS = 4;
+
+	public static void main(String[] args) throws Exception {
+		String types = args.length > 0 ? args[0] : "INTEGER,LONG,BIGDECIMAL_INTEGER";
+		for (String type : types.split(",")) {
+			File baseDir = Files.createTempDirectory("berkley-long-keys").toFile();
+			try {
+				run(baseDir, type.trim());
+			} finally {
+				BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+			}
+		}
+	}
+
+	private static void run(File baseDir, String type) {
+		BerkleyBackedCache cache = open(baseDir, type, false);
+		for (int i = 0; i < RECORDS; i++) {
+			long key = (i - RECORDS / 2) * 3L;
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("ID", box(type, key));
+			row.put("V", "v" + key);
+			cache.add(row);
+		}
+		cache.close();
+
+		Random random = new Random(1);
+		long[] keys = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			// one key in four falls between two records
+			keys[i] = (random.nextInt(RECORDS) - RECORDS / 2) * 3L + (random.nextInt(4) == 0 ? 1 : 0);
+		}
+		long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+
+		cache = open(baseDir, type, true);
+		for (int round = 1; round <= ROUNDS; round++) {
+			Pass boxed = new Pass();
+			for (long key : keys) {
+				boxed.count(cache.iterator(box(type, key)));
+			}
+			boxed.end();
+			Pass unboxed = new Pass();
+			for (long key : keys) {
+				unboxed.count(cache.iterator(key));
+			}
+			unboxed.end();
+
+			BerkleyBackedCache.KeyOrderedLookup lookup = cache.openKeyOrderedLookup();
+			Pass boxedJoin = new Pass();
+			for (long key : sorted) {
+				boxedJoin.count(lookup.lookup(box(type, key)));
+			}
+			boxedJoin.end();
+			lookup.close();
+			lookup = cache.openKeyOrderedLookup();
+			Pass unboxedJoin = new Pass();
+			for (long key : sorted) {
+				unboxedJoin.count(lookup.lookup(key));
+			}
+			unboxedJoin.end();
+			lookup.close();
+
+			System.out.printf("%s round %d: point boxed %s, long %s; join boxed %s, long %s%s%n", type, round,
+					boxed, unboxed, boxedJoin, unboxedJoin,
+					boxed.rows == unboxed.rows && boxed.rows == boxedJoin.rows && boxed.rows == unboxedJoin.rows
+							? "" : " ROW COUNTS DIFFER");
+		}
+		cache.close();
+	}
+
+	private static Object box(String type, long key) {
+		if ("INTEGER".equals(type)) {
+			return (int) key;
+		} else if ("LONG".equals(type)) {
+			return key;
+		}
+		return new BigDecimal(key);
+	}
+
+	private static BerkleyBackedCache open(File baseDir, String type, boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "keys")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, type + ",STRING");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	/**
+	 * Time, allocation and rows of one pass of lookups.
+	 */
+	private static class Pass {
+		private final java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		private final long startBytes = allocatedBytes();
+		private final long start = System.nanoTime();
+		private long nanos;
+		private long bytes;
+		private long rows = 0;
+
+		void count(Iterator<Map<String, Object>> found) {
+			while (found != null && found.hasNext()) {
+				found.next();
+				rows++;
+			}
+		}
+
+		void end() {
+			nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - startBytes;
+		}
+
+		private long allocatedBytes() {
+			if (mx instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%,.0f/s %d B", LOOKUPS * 1e9 / nanos, bytes / LOOKUPS);
+		}
+	}
+}
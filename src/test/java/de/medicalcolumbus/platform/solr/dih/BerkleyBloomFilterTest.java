@@ -0,0 +1,137 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A {@link BerkleyBackedCache#BERKLEY_BLOOM_FILTER} must never rule out a key
+ * the cache holds, after it was saved and loaded and after the cache was
+ * written again.
+ */
+public class BerkleyBloomFilterTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-bloom-filter").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void aLoadedFilterHasNoFalseNegatives() throws IOException {
+		BerkleyBloomFilter filter = BerkleyBloomFilter.create(10000, 0.01, 1024 * 1024);
+		for (int i = 0; i < 10000; i++) {
+			byte[] key = key(i);
+			filter.add(key, 0, key.length);
+		}
+		File file = new File(baseDir, "keys.bloom");
+		filter.save(file);
+		BerkleyBloomFilter loaded = BerkleyBloomFilter.load(file);
+		assertEquals(filter.getByteSize(), loaded.getByteSize());
+		assertEquals(filter.getHashCount(), loaded.getHashCount());
+		int falsePositives = 0;
+		for (int i = 0; i < 20000; i++) {
+			byte[] key = key(i);
+			if (i < 10000) {
+				assertTrue("key " + i, loaded.mightContain(key, 0, key.length));
+			} else if (loaded.mightContain(key, 0, key.length)) {
+				falsePositives++;
+			}
+		}
+		// sized for 1%
+		assertTrue(falsePositives + " false positives", falsePositives < 300);
+	}
+
+	@Test
+	public void everyStoredKeyIsFoundAfterReopening() {
+		assertStoredKeysFound(false);
+	}
+
+	@Test
+	public void everyStoredKeyIsFoundAfterReopeningWhenAppended() {
+		assertStoredKeysFound(true);
+	}
+
+	private void assertStoredKeysFound(boolean appendDuplicates) {
+		BerkleyBackedCache cache = open(false, appendDuplicates);
+		for (int key = 0; key < 3000; key += 3) {
+			cache.add(row(key));
+		}
+		cache.close();
+		assertFound(3000);
+		assertTrue(new File(new File(baseDir, "keys"), "primary-keys.bloom").exists());
+
+		// writing discards the filter, closing builds it over all keys again
+		cache = open(false, appendDuplicates);
+		for (int key = 3000; key < 6000; key += 3) {
+			cache.add(row(key));
+		}
+		cache.close();
+		assertFound(6000);
+	}
+
+	private void assertFound(int keys) {
+		BerkleyBackedCache cache = open(true, false);
+		BerkleyBackedCache.KeyOrderedLookup lookup = cache.openKeyOrderedLookup();
+		for (int key = 0; key < keys; key++) {
+			boolean stored = key % 3 == 0;
+			assertEquals("key " + key, stored, count(cache.iterator(key)) == 1);
+			assertEquals("key " + key, stored, count(lookup.lookup(key)) == 1);
+		}
+		lookup.close();
+		cache.close();
+	}
+
+	private BerkleyBackedCache open(boolean readOnly, boolean appendDuplicates) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "keys")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_APPEND_DUPLICATES, Boolean.toString(appendDuplicates))
+				.set(BerkleyBackedCache.BERKLEY_BLOOM_FILTER, "true");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(int key) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("V", "v" + key);
+		return row;
+	}
+
+	private static int count(Iterator<Map<String, Object>> rows) {
+		int n = 0;
+		while (rows != null && rows.hasNext()) {
+			rows.next();
+			n++;
+		}
+		return n;
+	}
+
+	private static byte[] key(int i) {
+		return ("article-" + i).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,178 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The keys {@link BerkleyChangedKeys} reports before and after it moves them
+ * to disk, and a delta update of a cache whose changed keys exceed
+ * {@link BerkleyBackedCache#BERKLEY_CHANGED_KEYS_MEMORY}.
+ */
+public class BerkleyChangedKeysTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-changed-keys").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void keysAreFoundBeforeAndAfterSpilling() {
+		EnvironmentConfig config = new EnvironmentConfig();
+		config.setAllowCreate(true);
+		Environment env = new Environment(baseDir, config);
+		BerkleyChangedKeys changed = new BerkleyChangedKeys(env, "changed", 32768);
+		try {
+			// 3 and 8 byte keys are packed into longs, 12 byte keys are not
+			for (int i = 0; i < 100; i++) {
+				changed.add(key(3, i), 0, 3);
+				changed.add(key(8, i), 0, 8);
+				changed.add(key(12, i), 0, 12);
+				assertFalse(changed.getStats(), changed.getStats().contains("moved to disk"));
+			}
+			assertContains(changed, 0, 100, true);
+			assertContains(changed, 100, 200, false);
+			for (int i = 100; i < 1000; i++) {
+				changed.add(key(3, i), 0, 3);
+				changed.add(key(8, i), 0, 8);
+				changed.add(key(12, i), 0, 12);
+			}
+			assertTrue(changed.getStats(), changed.getStats().contains("moved to disk"));
+			assertContains(changed, 0, 1000, true);
+			assertContains(changed, 1000, 1100, false);
+
+			changed.clear();
+			assertContains(changed, 0, 1000, false);
+			changed.add(key(3, 7), 0, 3);
+			changed.add(key(8, 7), 0, 8);
+			changed.add(key(12, 7), 0, 12);
+			assertContains(changed, 7, 8, true);
+			changed.clear();
+			changed.clear();
+			assertContains(changed, 7, 8, false);
+		} finally {
+			changed.clear();
+			env.close();
+		}
+	}
+
+	@Test
+	public void deltaUpdateReplacesTheRowsOfChangedKeysOnly() {
+		assertDeltaUpdate(false);
+	}
+
+	@Test
+	public void deltaUpdateInKeyOrderReplacesTheRowsOfChangedKeysOnly() {
+		assertDeltaUpdate(true);
+	}
+
+	private void assertDeltaUpdate(boolean inKeyOrder) {
+		BerkleyBackedCache cache = open(false, false, null);
+		for (int key = 0; key < 2000; key++) {
+			cache.add(row(key, "old"));
+			cache.add(row(key, "old"));
+		}
+		cache.close();
+
+		// a few hundred keys fit in 4 KB, the rest go to disk unless only the
+		// last key is kept
+		cache = open(true, inKeyOrder, "4096");
+		for (int key = 0; key < 2000; key += 2) {
+			cache.add(row(key, "new a"));
+			cache.add(row(key, "new b"));
+		}
+		cache.close();
+
+		cache = open(false, false, null);
+		for (int key = 0; key < 2000; key++) {
+			List<Object> expected = new ArrayList<Object>();
+			if (key % 2 == 0) {
+				expected.add("new a");
+				expected.add("new b");
+			} else {
+				expected.add("old");
+				expected.add("old");
+			}
+			assertEquals("key " + key, expected, values(cache.iterator(key)));
+		}
+		cache.close();
+	}
+
+	private BerkleyBackedCache open(boolean delta, boolean inKeyOrder, String changedKeysMemory) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "delta")
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING");
+		if (delta) {
+			context.set(DIHCachePersistProperties.CACHE_DELTA_WITH_FULL_UPDATE_NO_CLEAN, "true");
+		}
+		if (inKeyOrder) {
+			context.set(DIHCachePersistProperties.CACHE_ADDS_ARRIVE_IN_KEY_ORDER, "true");
+		}
+		if (changedKeysMemory != null) {
+			context.set(BerkleyBackedCache.BERKLEY_CHANGED_KEYS_MEMORY, changedKeysMemory);
+		}
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(int key, String value) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("V", value);
+		return row;
+	}
+
+	private static List<Object> values(Iterator<Map<String, Object>> rows) {
+		List<Object> values = new ArrayList<Object>();
+		while (rows != null && rows.hasNext()) {
+			values.add(rows.next().get("V"));
+		}
+		return values;
+	}
+
+	private static void assertContains(BerkleyChangedKeys changed, int from, int to, boolean expected) {
+		for (int i = from; i < to; i++) {
+			for (int length : new int[] { 3, 8, 12 }) {
+				assertEquals(length + " byte key " + i, expected, changed.contains(key(length, i), 0, length));
+			}
+		}
+	}
+
+	/**
+	 * A key of "length" bytes, with "i" in its last ones and 0 before.
+	 */
+	private static byte[] key(int length, int i) {
+		byte[] key = new byte[length];
+		for (int b = length - 1; b >= 0 && i != 0; b--) {
+			key[b] = (byte) i;
+			i >>>= 8;
+		}
+		return key;
+	}
+}
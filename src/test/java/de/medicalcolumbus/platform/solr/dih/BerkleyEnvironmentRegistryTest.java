@@ -0,0 +1,144 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Caches sharing one environment with
+ * {@link BerkleyBackedCache#BERKLEY_SHARED_ENVIRONMENT}: the environment stays
+ * open until the last of them is closed, and each keeps its own rows.
+ */
+public class BerkleyEnvironmentRegistryTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-shared-environment").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void theEnvironmentIsClosedWithTheLastCache() throws IOException {
+		File home = new File(baseDir, "shared-environment");
+		BerkleyBackedCache articles = open("articles", false);
+		BerkleyBackedCache prices = open("prices", false);
+		articles.add(row(1, "article"));
+		prices.add(row(1, "price"));
+		articles.close();
+		assertTrue(isOpen(home));
+
+		// the remaining cache still writes and reads
+		prices.add(row(2, "price 2"));
+		assertEquals(list("price"), values(prices, 1));
+		prices.close();
+		assertFalse(isOpen(home));
+
+		articles = open("articles", true);
+		prices = open("prices", true);
+		assertEquals(list("article"), values(articles, 1));
+		assertEquals(list(), values(articles, 2));
+		assertEquals(list("price 2"), values(prices, 2));
+		prices.close();
+		assertTrue(isOpen(home));
+		articles.close();
+		assertFalse(isOpen(home));
+	}
+
+	@Test
+	public void destroyingACacheKeepsTheOthers() throws IOException {
+		BerkleyBackedCache articles = open("articles", false);
+		BerkleyBackedCache prices = open("prices", false);
+		articles.add(row(1, "article"));
+		prices.add(row(1, "price"));
+		articles.close();
+		articles.destroy();
+		assertEquals(list("price"), values(prices, 1));
+		prices.close();
+		assertFalse(isOpen(new File(baseDir, "shared-environment")));
+
+		prices = open("prices", true);
+		assertEquals(list("price"), values(prices, 1));
+		prices.close();
+	}
+
+	/**
+	 * JE holds a lock on "je.lck" while the environment is open; a second lock
+	 * of the same file in this JVM overlaps it.
+	 */
+	private static boolean isOpen(File home) throws IOException {
+		FileChannel channel = FileChannel.open(new File(home, "je.lck").toPath(), StandardOpenOption.WRITE);
+		try {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				return true;
+			}
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			return true;
+		} finally {
+			channel.close();
+		}
+	}
+
+	private BerkleyBackedCache open(String name, boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, name)
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_SHARED_ENVIRONMENT, "true");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(int key, String value) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("V", value);
+		return row;
+	}
+
+	private static List<Object> values(BerkleyBackedCache cache, int key) {
+		List<Object> values = new ArrayList<Object>();
+		Iterator<Map<String, Object>> rows = cache.iterator(key);
+		while (rows != null && rows.hasNext()) {
+			values.add(rows.next().get("V"));
+		}
+		return values;
+	}
+
+	private static List<Object> list(Object... values) {
+		List<Object> list = new ArrayList<Object>();
+		for (Object value : values) {
+			list.add(value);
+		}
+		return list;
+	}
+}
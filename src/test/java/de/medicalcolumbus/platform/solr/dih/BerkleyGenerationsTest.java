@@ -0,0 +1,114 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publishing a rebuilt {@link BerkleyBackedCache#BERKLEY_GENERATIONS}
+ * generation while a reader has the previous one open, and reaping the
+ * previous one once the reader is gone.
+ */
+public class BerkleyGenerationsTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-generations").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void aReaderKeepsItsGenerationUntilItCloses() throws IOException {
+		build("first");
+		String first = BerkleyGenerations.current(baseDir, "articles");
+		BerkleyBackedCache reader = open(true, false);
+		assertEquals("first", value(reader));
+
+		build("second");
+		String second = BerkleyGenerations.current(baseDir, "articles");
+		assertFalse(first.equals(second));
+		// the open reader is not disturbed, new readers see the new generation
+		assertEquals(0, BerkleyGenerations.reap(baseDir, "articles", false));
+		assertTrue(new File(baseDir, first).isDirectory());
+		assertEquals("first", value(reader));
+		BerkleyBackedCache newReader = open(true, false);
+		assertEquals("second", value(newReader));
+		newReader.close();
+
+		reader.close();
+		BerkleyGenerations.reap(baseDir, "articles", false);
+		assertFalse(new File(baseDir, first).exists());
+		assertFalse(new File(baseDir, first + "_cache.properties").exists());
+		assertTrue(new File(baseDir, second).isDirectory());
+		newReader = open(true, false);
+		assertEquals("second", value(newReader));
+		newReader.close();
+	}
+
+	@Test
+	public void anUnpublishedGenerationIsNotRead() throws IOException {
+		build("first");
+		BerkleyBackedCache writer = open(false, true);
+		writer.add(row("second"));
+		writer.flush();
+		BerkleyBackedCache reader = open(true, false);
+		assertEquals("first", value(reader));
+		reader.close();
+		writer.close();
+		reader = open(true, false);
+		assertEquals("second", value(reader));
+		reader.close();
+	}
+
+	private void build(String value) {
+		BerkleyBackedCache writer = open(false, true);
+		writer.add(row(value));
+		writer.close();
+	}
+
+	private BerkleyBackedCache open(boolean readOnly, boolean deletePriorData) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "articles")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_DELETE_PRIOR_DATA, Boolean.toString(deletePriorData))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_GENERATIONS, "true");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(String value) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", 1);
+		row.put("V", value);
+		return row;
+	}
+
+	private static Object value(BerkleyBackedCache cache) {
+		Iterator<Map<String, Object>> rows = cache.iterator(1);
+		Object value = rows.next().get("V");
+		assertFalse(rows.hasNext());
+		return value;
+	}
+}
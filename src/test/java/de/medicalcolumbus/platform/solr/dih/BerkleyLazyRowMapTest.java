@@ -0,0 +1,91 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The values of the {@link BerkleyLazyRowMap rows} a lookup returns, read
+ * after the cache has moved on or the row was modified.
+ */
+public class BerkleyLazyRowMapTest {
+	private File baseDir;
+	private BerkleyBackedCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-lazy-rows").toFile();
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "rows")
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,NAME,QTY")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING,INTEGER");
+		cache = new BerkleyBackedCache();
+		cache.open(context);
+	}
+
+	@After
+	public void tearDown() {
+		cache.close();
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void aRowKeepsItsValuesAfterTheEntryChanged() {
+		cache.add(row(1, "first", 10));
+		cache.add(row(2, "other", 20));
+		Map<String, Object> first = cache.iterator(1).next();
+		// nothing decoded yet while the record is replaced and others are read
+		cache.delete(1);
+		cache.add(row(1, "replaced", 11));
+		cache.add(row(1, "appended", 12));
+		assertEquals("other", cache.iterator(2).next().get("NAME"));
+		assertEquals("first", first.get("NAME"));
+		assertEquals(10, first.get("QTY"));
+		assertEquals(1, first.get("ID"));
+
+		Iterator<Map<String, Object>> rows = cache.iterator(1);
+		assertEquals("replaced", rows.next().get("NAME"));
+		assertEquals("appended", rows.next().get("NAME"));
+		assertFalse(rows.hasNext());
+	}
+
+	@Test
+	public void aModifiedRowIsAPlainMap() {
+		cache.add(row(1, "first", 10));
+		Map<String, Object> row = cache.iterator(1).next();
+		assertEquals("first", row.get("NAME"));
+		row.put("NAME", "renamed");
+		row.put("EXTRA", "x");
+		row.remove("QTY");
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("ID", 1);
+		expected.put("NAME", "renamed");
+		expected.put("EXTRA", "x");
+		assertEquals(expected, row);
+		assertNull(row.get("QTY"));
+		// the stored row is unchanged
+		assertEquals(row(1, "first", 10), cache.iterator(1).next());
+	}
+
+	private static Map<String, Object> row(int id, String name, int qty) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", id);
+		row.put("NAME", name);
+		row.put("QTY", qty);
+		return row;
+	}
+}
@@ -0,0 +1,107 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The rows a cache with a {@link BerkleyBackedCache#BERKLEY_ROW_CACHE_SIZE}
+ * returns: every lookup gets copies a caller may modify, and writes of a key
+ * invalidate its cached result.
+ */
+public class BerkleyRowCacheTest {
+	private File baseDir;
+	private BerkleyBackedCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-row-cache").toFile();
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "codes")
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING")
+				.set(BerkleyBackedCache.BERKLEY_ROW_CACHE_SIZE, Integer.toString(1024 * 1024));
+		cache = new BerkleyBackedCache();
+		cache.open(context);
+	}
+
+	@After
+	public void tearDown() {
+		cache.close();
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void modifiedRowsDontReachLaterLookups() {
+		cache.add(row(1, "a"));
+		cache.add(row(1, "b"));
+		// the first lookup misses and caches its rows, the others hit
+		for (int lookup = 0; lookup < 3; lookup++) {
+			List<Map<String, Object>> rows = rows(1);
+			assertEquals(Arrays.asList("a", "b"), values(rows));
+			rows.get(0).put("V", "changed " + lookup);
+			rows.get(1).remove("V");
+			rows.get(1).put("EXTRA", "x");
+		}
+		List<Map<String, Object>> first = rows(1);
+		List<Map<String, Object>> second = rows(1);
+		assertNotSame(first.get(0), second.get(0));
+		assertEquals(first, second);
+	}
+
+	@Test
+	public void writesInvalidateTheCachedResult() {
+		cache.add(row(1, "a"));
+		cache.add(row(2, "other"));
+		assertEquals(Arrays.asList("a"), values(rows(1)));
+		cache.add(row(1, "b"));
+		assertEquals(Arrays.asList("a", "b"), values(rows(1)));
+		cache.delete(1);
+		assertEquals(new ArrayList<Object>(), values(rows(1)));
+		cache.add(row(1, "c"));
+		assertEquals(Arrays.asList("c"), values(rows(1)));
+		cache.deleteAll();
+		assertEquals(new ArrayList<Object>(), values(rows(1)));
+		assertEquals(new ArrayList<Object>(), values(rows(2)));
+	}
+
+	private List<Map<String, Object>> rows(int key) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		Iterator<Map<String, Object>> found = cache.iterator(key);
+		while (found != null && found.hasNext()) {
+			rows.add(found.next());
+		}
+		return rows;
+	}
+
+	private static List<Object> values(List<Map<String, Object>> rows) {
+		List<Object> values = new ArrayList<Object>();
+		for (Map<String, Object> row : rows) {
+			values.add(row.get("V"));
+		}
+		return values;
+	}
+
+	private static Map<String, Object> row(int key, String value) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("V", value);
+		return row;
+	}
+}
@@ -0,0 +1,132 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Which STRING columns keep a {@link BerkleyStringDictionary}, and that the
+ * dictionaries and the decision survive reopening the cache.
+ */
+public class BerkleyStringDictionaryTest {
+	private static final String[] LOCALES = { "de", "en", "fr" };
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("berkley-string-dictionary").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void onlyLowCardinalityColumnsKeepTheirDictionary() throws IOException {
+		BerkleyBackedCache cache = open(false);
+		for (int key = 0; key < 3000; key++) {
+			cache.add(row(key));
+		}
+		cache.close();
+
+		Map<String, BerkleyStringDictionary> dictionaries = load();
+		assertFalse(dictionaries.get("LOCALE").isDropped());
+		assertEquals(LOCALES.length, dictionaries.get("LOCALE").size());
+		assertTrue(dictionaries.get("NAME").isDropped());
+		assertTrue(dictionaries.get("NAME").size() <= 256);
+
+		cache = open(true);
+		assertRows(cache, 3000);
+		// a coded value is one instance in all rows
+		assertSame(cache.iterator(0).next().get("LOCALE"), cache.iterator(3).next().get("LOCALE"));
+		cache.close();
+
+		// a reopened cache neither samples nor codes the dropped column again
+		cache = open(false);
+		for (int key = 3000; key < 4000; key++) {
+			cache.add(row(key));
+		}
+		cache.close();
+		Map<String, BerkleyStringDictionary> reopened = load();
+		assertTrue(reopened.get("NAME").isDropped());
+		assertEquals(dictionaries.get("NAME").size(), reopened.get("NAME").size());
+		cache = open(true);
+		assertRows(cache, 4000);
+		cache.close();
+	}
+
+	@Test
+	public void dictionariesWithoutDropsReadAsBefore() throws IOException {
+		File file = new File(baseDir, "string-dictionaries.dat");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(1);
+			out.writeUTF("LOCALE");
+			out.writeInt(LOCALES.length);
+			for (String locale : LOCALES) {
+				byte[] bytes = locale.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+		BerkleyStringDictionary dictionary = BerkleyStringDictionary.load(file, 256).get("LOCALE");
+		assertFalse(dictionary.isDropped());
+		assertEquals("fr", dictionary.value(2));
+		assertEquals(1, dictionary.code("en"));
+	}
+
+	private void assertRows(BerkleyBackedCache cache, int keys) {
+		for (int key = 0; key < keys; key++) {
+			Iterator<Map<String, Object>> rows = cache.iterator(key);
+			Map<String, Object> row = rows.next();
+			assertEquals(LOCALES[key % LOCALES.length], row.get("LOCALE"));
+			assertEquals("Article " + key, row.get("NAME"));
+			assertFalse(rows.hasNext());
+		}
+	}
+
+	private Map<String, BerkleyStringDictionary> load() throws IOException {
+		return BerkleyStringDictionary.load(new File(new File(baseDir, "articles"), "string-dictionaries.dat"), 256);
+	}
+
+	private BerkleyBackedCache open(boolean readOnly) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "articles")
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, Boolean.toString(readOnly))
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,LOCALE,NAME")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING,STRING");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+
+	private static Map<String, Object> row(int key) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", key);
+		row.put("LOCALE", LOCALES[key % LOCALES.length]);
+		row.put("NAME", "Article " + key);
+		return row;
+	}
+}
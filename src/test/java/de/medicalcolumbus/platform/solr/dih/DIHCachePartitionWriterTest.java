@@ -0,0 +1,164 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.Context;
+import org.apache.solr.handler.dataimport.DIHCache;
+import org.apache.solr.handler.dataimport.DataImportHandlerException;
+import org.junit.Test;
+
+/**
+ * The order in which {@link DIHCachePartitionWriter} applies operations, and
+ * how a failure of its writer thread reaches the producers.
+ */
+public class DIHCachePartitionWriterTest {
+
+	@Test
+	public void flushFollowsTheOperationsSubmittedBefore() {
+		RecordingCache cache = new RecordingCache(null);
+		DIHCachePartitionWriter writer = new DIHCachePartitionWriter(cache, 0, "test", 2, 8);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			writer.add(row(i));
+			expected.add("add " + i);
+			if (i % 10 == 0) {
+				writer.delete(i);
+				expected.add("delete " + i);
+			}
+		}
+		writer.deleteAll();
+		expected.add("deleteAll");
+		writer.add(row(100));
+		expected.add("add 100");
+		writer.startFlush();
+		writer.awaitFlush();
+		expected.add("flush");
+		// nothing was left in a batch or the queue when the flush ran
+		assertEquals(expected, cache.operations());
+
+		writer.add(row(101));
+		writer.close();
+		expected.add("add 101");
+		assertEquals(expected, cache.operations());
+	}
+
+	@Test
+	public void failureReachesTheProducer() {
+		RuntimeException cause = new RuntimeException("disk full");
+		RecordingCache cache = new RecordingCache(cause);
+		DIHCachePartitionWriter writer = new DIHCachePartitionWriter(cache, 3, "test", 2, 4);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				writer.add(row(i));
+			}
+			writer.startFlush();
+			writer.awaitFlush();
+			fail("the failure of the writer thread was not rethrown");
+		} catch (DataImportHandlerException e) {
+			assertSame(cause, e.getCause());
+		}
+		// the operations before the failing one were applied, the rest discarded
+		assertEquals(RecordingCache.FAILING_KEY, cache.operations().size());
+		try {
+			writer.close();
+			fail("close() did not rethrow the failure");
+		} catch (DataImportHandlerException e) {
+			assertSame(cause, e.getCause());
+		}
+	}
+
+	@Test
+	public void operationsAfterCloseAreRejected() {
+		RecordingCache cache = new RecordingCache(null);
+		DIHCachePartitionWriter writer = new DIHCachePartitionWriter(cache, 0, "test", 2, 8);
+		writer.add(row(1));
+		writer.close();
+		try {
+			writer.add(row(2));
+			fail("an add after close() was accepted");
+		} catch (DataImportHandlerException e) {
+			// expected
+		}
+		writer.close();
+		assertEquals(Collections.singletonList("add 1"), cache.operations());
+	}
+
+	private static Map<String, Object> row(int id) {
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("ID", id);
+		return row;
+	}
+
+	/**
+	 * Records the operations applied to it. Adding the row of
+	 * {@link #FAILING_KEY} throws the given failure, if any.
+	 */
+	private static class RecordingCache implements DIHCache {
+		static final int FAILING_KEY = 500;
+
+		private final RuntimeException failure;
+		private final List<String> operations = new ArrayList<String>();
+
+		RecordingCache(RuntimeException failure) {
+			this.failure = failure;
+		}
+
+		synchronized List<String> operations() {
+			return new ArrayList<String>(operations);
+		}
+
+		@Override
+		public synchronized void add(Map<String, Object> rec) {
+			if (failure != null && Integer.valueOf(FAILING_KEY).equals(rec.get("ID"))) {
+				throw failure;
+			}
+			operations.add("add " + rec.get("ID"));
+		}
+
+		@Override
+		public synchronized void delete(Object key) {
+			operations.add("delete " + key);
+		}
+
+		@Override
+		public synchronized void deleteAll() {
+			operations.add("deleteAll");
+		}
+
+		@Override
+		public synchronized void flush() {
+			operations.add("flush");
+		}
+
+		@Override
+		public void open(Context context) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public Iterator<Map<String, Object>> iterator() {
+			return Collections.<Map<String, Object>> emptyList().iterator();
+		}
+
+		@Override
+		public Iterator<Map<String, Object>> iterator(Object key) {
+			return null;
+		}
+	}
+}
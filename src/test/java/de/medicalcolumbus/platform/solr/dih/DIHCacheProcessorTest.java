@@ -0,0 +1,74 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lookups through {@link DIHCacheProcessor}, and what it leaves behind.
+ */
+public class DIHCacheProcessorTest {
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("dih-cache-processor").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void destroyClosesTheCache() {
+		MapContext context = context();
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("ID", i);
+			row.put("V", "v" + i);
+			cache.add(row);
+		}
+		cache.close();
+
+		context.set(DIHCachePersistProperties.CACHE_IMPL, BerkleyBackedCache.class.getName())
+				.set(DIHCachePersistProperties.CACHE_FOREIGN_KEY, "parent.ID")
+				.set(BerkleyBackedCache.BERKLEY_HOT_KEYS, "10");
+		DIHCacheProcessor processor = new DIHCacheProcessor();
+		processor.init(context);
+		int found = 0;
+		for (int i = 0; i < 1000; i++) {
+			context.set("parent.ID", i % 20);
+			if (processor.nextRow() != null) {
+				found++;
+			}
+			processor.nextRow();
+		}
+		processor.destroy();
+
+		assertEquals(1000, found);
+		// saved by close()
+		assertTrue(new File(baseDir, "child_cache.hotkeys").exists());
+	}
+
+	private MapContext context() {
+		return new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "child")
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING");
+	}
+}
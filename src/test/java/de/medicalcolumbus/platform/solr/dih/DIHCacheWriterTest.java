@@ -0,0 +1,178 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.handler.dataimport.DIHCacheSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Partitioned writes through {@link DIHCacheWriter}: which partition a key
+ * lands in, and the order in which a key's writes and deletes arrive.
+ */
+public class DIHCacheWriterTest {
+	private static final int PARTITIONS = 4;
+	private static final int THREADS = 8;
+	private static final int KEYS_PER_THREAD = 300;
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException {
+		baseDir = Files.createTempDirectory("dih-cache-writer").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		BerkleyBackedCacheConcurrencyTest.delete(baseDir);
+	}
+
+	@Test
+	public void hashPartitioningIsLoadedAsSaved() throws Exception {
+		checkPartitioning(writerContext("hash"));
+	}
+
+	@Test
+	public void sampledRangePartitioningIsLoadedAsSaved() throws Exception {
+		checkPartitioning(writerContext("range").set(DIHCachePersistProperties.CACHE_PARTITION_SAMPLE_SIZE, "500"));
+	}
+
+	@Test
+	public void sampledRangePartitioningKeepsEachKeysOrder() throws Exception {
+		checkKeyOrder(writerContext("range").set(DIHCachePersistProperties.CACHE_PARTITION_SAMPLE_SIZE, "500"));
+	}
+
+	@Test
+	public void asyncWritersKeepEachKeysOrder() throws Exception {
+		checkKeyOrder(writerContext("hash").set(DIHCachePersistProperties.CACHE_ASYNC_WRITERS, "true")
+				.set(DIHCachePersistProperties.CACHE_WRITER_BATCH_SIZE, "16"));
+	}
+
+	/**
+	 * Writes keys in scattered order, and checks that the partitioner loaded
+	 * from the partitions file assigns each key the partition it was written
+	 * to.
+	 */
+	private void checkPartitioning(MapContext context) throws Exception {
+		DIHCacheWriter writer = new DIHCacheWriter();
+		writer.init(context);
+		int keys = 2000;
+		for (int i = 0; i < keys; i++) {
+			writer.upload(document((i * 7919) % keys, "v"));
+		}
+		writer.close();
+
+		DIHCachePartitioner loaded = DIHCacheWriter.loadPartitioner(
+				DIHCacheWriter.getPartitionsFile(baseDir.getAbsolutePath(), "docs"), null);
+		int found = 0;
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			BerkleyBackedCache cache = openPartition(partition);
+			Iterator<Map<String, Object>> rows = cache.iterator();
+			while (rows.hasNext()) {
+				Object key = rows.next().get("ID");
+				assertEquals("key " + key, partition, loaded.getPartition(key));
+				// a foreign key may come as a String
+				assertEquals("key " + key, partition, loaded.getPartition(key.toString()));
+				found++;
+			}
+			cache.close();
+		}
+		assertEquals(keys, found);
+	}
+
+	/**
+	 * Every thread writes its own keys as: add "a", delete, add "b". Only "b"
+	 * must be left of each key.
+	 */
+	private void checkKeyOrder(MapContext context) throws Exception {
+		final DIHCacheWriter writer = new DIHCacheWriter();
+		writer.init(context);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < KEYS_PER_THREAD; i++) {
+							int key = i * THREADS + thread;
+							writer.upload(document(key, "a"));
+							writer.deleteDoc(key);
+							writer.upload(document(key, "b"));
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		writer.close();
+		assertEquals("[]", failures.toString());
+
+		int found = 0;
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			BerkleyBackedCache cache = openPartition(partition);
+			Iterator<Map<String, Object>> rows = cache.iterator();
+			while (rows.hasNext()) {
+				Map<String, Object> row = rows.next();
+				assertEquals("key " + row.get("ID"), "b", value(row.get("V")));
+				found++;
+			}
+			cache.close();
+		}
+		assertEquals(THREADS * KEYS_PER_THREAD, found);
+	}
+
+	private static SolrInputDocument document(int key, String value) {
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.addField("ID", key);
+		doc.addField("V", value);
+		return doc;
+	}
+
+	private static Object value(Object value) {
+		return value instanceof Collection ? ((Collection<?>) value).iterator().next() : value;
+	}
+
+	private MapContext writerContext(String partitioner) {
+		return new MapContext()
+				.set(DIHCachePersistProperties.CACHE_IMPL, BerkleyBackedCache.class.getName())
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "docs")
+				.set(DIHCachePersistProperties.CACHE_PARTITIONS, Integer.toString(PARTITIONS))
+				.set(DIHCachePersistProperties.CACHE_PARTITIONER, partitioner)
+				.set(DIHCacheSupport.CACHE_PRIMARY_KEY, "ID")
+				.set(DIHCachePersistProperties.FIELD_NAMES, "ID,V")
+				.set(DIHCachePersistProperties.FIELD_TYPES, "INTEGER,STRING");
+	}
+
+	private BerkleyBackedCache openPartition(int partition) {
+		MapContext context = new MapContext()
+				.set(DIHCachePersistProperties.CACHE_BASE_DIRECTORY, baseDir.getAbsolutePath())
+				.set(DIHCachePersistProperties.CACHE_NAME, "docs-part" + partition)
+				.set(DIHCachePersistProperties.CACHE_READ_ONLY, "true");
+		BerkleyBackedCache cache = new BerkleyBackedCache();
+		cache.open(context);
+		return cache;
+	}
+}
@@ -0,0 +1,133 @@
+package de.medicalcolumbus.platform.solr.dih;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.dataimport.Context;
+import org.apache.solr.handler.dataimport.DataSource;
+import org.apache.solr.handler.dataimport.EntityProcessor;
+import org.apache.solr.handler.dataimport.VariableResolver;
+
+/**
+ * A {@link Context} backed by maps, for opening caches outside of DIH. Entity
+ * attributes and resolved variables come from {@link #set}.
+ */
+class MapContext extends Context {
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	private final Map<String, Object> session = new HashMap<String, Object>();
+
+	MapContext set(String name, Object value) {
+		attributes.put(name, value);
+		return this;
+	}
+
+	@Override
+	public String getEntityAttribute(String name) {
+		Object value = attributes.get(name);
+		return value == null ? null : value.toString();
+	}
+
+	@Override
+	public String getResolvedEntityAttribute(String name) {
+		return getEntityAttribute(name);
+	}
+
+	@Override
+	public List<Map<String, String>> getAllEntityFields() {
+		return null;
+	}
+
+	@Override
+	public VariableResolver getVariableResolver() {
+		return null;
+	}
+
+	@Override
+	public DataSource getDataSource() {
+		return null;
+	}
+
+	@Override
+	public DataSource getDataSource(String name) {
+		return null;
+	}
+
+	@Override
+	public EntityProcessor getEntityProcessor() {
+		return null;
+	}
+
+	@Override
+	public void setSessionAttribute(String name, Object val, String scope) {
+		if (val == null) {
+			session.remove(name);
+		} else {
+			session.put(name, val);
+		}
+	}
+
+	@Override
+	public Object getSessionAttribute(String name, String scope) {
+		return session.get(name);
+	}
+
+	@Override
+	public Context getParentContext() {
+		return null;
+	}
+
+	@Override
+	public Map<String, Object> getRequestParameters() {
+		return new HashMap<String, Object>();
+	}
+
+	@Override
+	public boolean isRootEntity() {
+		return false;
+	}
+
+	@Override
+	public String currentProcess() {
+		return null;
+	}
+
+	@Override
+	public SolrCore getSolrCore() {
+		return null;
+	}
+
+	@Override
+	public Map<String, Object> getStats() {
+		return null;
+	}
+
+	@Override
+	public String getScript() {
+		return null;
+	}
+
+	@Override
+	public String getScriptLanguage() {
+		return null;
+	}
+
+	@Override
+	public void deleteDoc(String id) {
+	}
+
+	@Override
+	public void deleteDocByQuery(String query) {
+	}
+
+	@Override
+	public Object resolve(String var) {
+		return attributes.get(var);
+	}
+
+	@Override
+	public String replaceTokens(String template) {
+		return template;
+	}
+}